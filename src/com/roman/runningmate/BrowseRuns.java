@@ -0,0 +1,177 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import android.app.ActivityManager;
+import android.app.ListActivity;
+import android.content.Context;
+import android.os.Bundle;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+// Lists the stored runs, newest first, each with a thumbnail of its route. Runs are read a page at a time as the list
+// is scrolled, and only their ids, times and distances are kept.
+public class BrowseRuns extends ListActivity {
+  private static final int PAGE_SIZE = 50;
+  // Rows left before the end of the loaded runs at which the next page is read.
+  private static final int PREFETCH_DISTANCE = 10;
+  // Matches the size of the thumbnail in the run_row layout, in dips.
+  private static final int THUMBNAIL_SIZE = 64;
+  // Most space thumbnails may take on disk, in bytes.
+  private static final long THUMBNAIL_DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+  private RunHistory history = null;
+  private ThumbnailCache thumbnailCache = null;
+
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+
+    LocationService locationService = RunningMate.getLocationService();
+    if (locationService == null) {
+      finish();
+      return;
+    }
+    DataHelper dataHelper = locationService.getDataHelper();
+    history = dataHelper.getRunHistory(0, Long.MAX_VALUE, true, PAGE_SIZE);
+
+    // Thumbnails get an eighth of the memory the app can use.
+    int memoryClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+    int thumbnailSize = (int) (THUMBNAIL_SIZE * getResources().getDisplayMetrics().density + 0.5f);
+    thumbnailCache = new ThumbnailCache(this, dataHelper, thumbnailSize, memoryClass * 1024 * 1024 / 8, THUMBNAIL_DISK_CACHE_SIZE);
+
+    setListAdapter(new RunAdapter());
+  }
+
+  @Override
+  protected void onDestroy() {
+    Settings.printLogMessage(getClass().getCanonicalName(), "onDestroy() called.");
+    super.onDestroy();
+    if (history != null) {
+      history.close();
+    }
+    if (thumbnailCache != null) {
+      thumbnailCache.close();
+    }
+  }
+
+  private class RunAdapter extends BaseAdapter {
+    private DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+    private Date date = new Date();
+
+    private long[] runIds = new long[PAGE_SIZE];
+    private long[] timeStarts = new long[PAGE_SIZE];
+    private long[] timeEnds = new long[PAGE_SIZE];
+    private double[] distances = new double[PAGE_SIZE];
+    private int count = 0;
+    private boolean hasMore = true;
+    private boolean readPending = false;
+
+    private Runnable readNextPage = new Runnable() {
+      @Override
+      public void run() {
+        readPending = false;
+        readPage();
+        notifyDataSetChanged();
+      }
+    };
+
+    RunAdapter() {
+      readPage();
+    }
+
+    // Appends the next page of runs. A page is a single lookup on the start time index, quick enough for the main thread.
+    private void readPage() {
+      if (!hasMore || !history.nextPage()) {
+        hasMore = false;
+        return;
+      }
+      while (history.moveToNext()) {
+        if (count == runIds.length) {
+          runIds = grow(runIds);
+          timeStarts = grow(timeStarts);
+          timeEnds = grow(timeEnds);
+          double[] grownDistances = new double[distances.length * 2];
+          System.arraycopy(distances, 0, grownDistances, 0, count);
+          distances = grownDistances;
+        }
+        runIds[count] = history.getRunId();
+        timeStarts[count] = history.getTimeStart();
+        timeEnds[count] = history.getTimeEnd();
+        distances[count] = history.getDistance();
+        ++count;
+      }
+    }
+
+    private long[] grow(long[] array) {
+      long[] grown = new long[array.length * 2];
+      System.arraycopy(array, 0, grown, 0, count);
+      return grown;
+    }
+
+    @Override
+    public int getCount() {
+      return count;
+    }
+
+    @Override
+    public Object getItem(int position) {
+      return runIds[position];
+    }
+
+    @Override
+    public long getItemId(int position) {
+      return runIds[position];
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+      if (hasMore && !readPending && position >= count - PREFETCH_DISTANCE) {
+        // The list can't change while it is laying out rows.
+        readPending = true;
+        getListView().post(readNextPage);
+      }
+
+      View row = convertView;
+      if (row == null) {
+        row = getLayoutInflater().inflate(R.layout.run_row, parent, false);
+      }
+
+      date.setTime(timeStarts[position]);
+      long minutes = (timeEnds[position] - timeStarts[position]) / 60000;
+      ((TextView) row.findViewById(R.id.run_info)).setText(dateFormat.format(date) + "\n"
+          + String.format("%.2f km in %d:%02d", distances[position] / RunStatistics.METERS_PER_KILOMETER, minutes / 60, minutes % 60));
+      thumbnailCache.load(runIds[position], timeEnds[position], (ImageView) row.findViewById(R.id.thumbnail));
+      return row;
+    }
+  }
+}
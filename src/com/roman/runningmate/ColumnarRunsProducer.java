@@ -0,0 +1,153 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+
+// Writes a batch of runs in the compact upload format: a gzipped JSON document where each run carries its track as a
+// list of chunks of up to TrackCodec.CHUNK_SIZE coordinates, each chunk holding four numeric arrays: latitude and
+// longitude in units of 1e-7 degrees, elevation in decimetres and time elapsed in milliseconds. Only used when the
+// server says it accepts it, otherwise RunsJsonProducer is used.
+public class ColumnarRunsProducer implements ContentProducer {
+  public static final String FORMAT = "columnar_chunks_gzip";
+
+  private DataHelper dataHelper;
+  private List<Run> runs;
+
+  public ColumnarRunsProducer(DataHelper dataHelper, List<Run> runs) {
+    this.dataHelper = dataHelper;
+    this.runs = runs;
+  }
+
+  public HttpEntity createEntity() {
+    EntityTemplate entity = new EntityTemplate(this);
+    entity.setContentType("application/json");
+    entity.setContentEncoding("gzip");
+    entity.setChunked(true);
+    return entity;
+  }
+
+  @Override
+  public void writeTo(OutputStream outputStream) throws IOException {
+    // Closing the writer writes the gzip trailer and releases the deflater, but leaves the connection's stream open.
+    Writer json = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new NonClosingOutputStream(outputStream)), "UTF-8"));
+    try {
+      json.write("{\"format\":\"" + FORMAT + "\",\"runs\":[");
+
+      // A chunk of the track at a time is read, so no run is ever held in memory and each is only read once.
+      CoordinateBuffer chunk = new CoordinateBuffer(TrackCodec.CHUNK_SIZE);
+      for (Run run : runs) {
+        if (runs.get(0) != run)
+          json.write(",");
+
+        json.write("{\"time_start\":");
+        json.write(Long.toString(run.getTimeStart()));
+
+        json.write(",\"time_end\":");
+        json.write(Long.toString(run.getTimeEnd()));
+
+        json.write(",\"distance\":");
+        json.write(Double.toString(run.getDistance()));
+
+        json.write(",\"chunks\":[");
+        CoordinateReader reader = dataHelper.readCoordinates(run.getRunId());
+        try {
+          boolean first = true;
+          while (reader.read(chunk, TrackCodec.CHUNK_SIZE) > 0) {
+            if (!first)
+              json.write(",");
+            first = false;
+            writeChunk(json, chunk);
+            chunk.clear();
+          }
+        } finally {
+          reader.close();
+        }
+        json.write("]}");
+      }
+      json.write("]}");
+    } finally {
+      json.close();
+    }
+  }
+
+  private void writeChunk(Writer json, CoordinateBuffer chunk) throws IOException {
+    json.write("{\"latitude\":[");
+    for (int i = 0; i < chunk.size(); ++i) {
+      if (i > 0)
+        json.write(",");
+      json.write(Long.toString(Math.round(chunk.getLatitude(i) * 1E7)));
+    }
+    json.write("],\"longitude\":[");
+    for (int i = 0; i < chunk.size(); ++i) {
+      if (i > 0)
+        json.write(",");
+      json.write(Long.toString(Math.round(chunk.getLongitude(i) * 1E7)));
+    }
+    json.write("],\"elevation\":[");
+    for (int i = 0; i < chunk.size(); ++i) {
+      if (i > 0)
+        json.write(",");
+      json.write(Long.toString(Math.round(chunk.getElevation(i) * 10)));
+    }
+    json.write("],\"time_elapsed\":[");
+    for (int i = 0; i < chunk.size(); ++i) {
+      if (i > 0)
+        json.write(",");
+      json.write(Long.toString(chunk.getTimeElapsed(i)));
+    }
+    json.write("]}");
+  }
+
+  // Passes writes through, but only flushes on close.
+  private static class NonClosingOutputStream extends FilterOutputStream {
+    public NonClosingOutputStream(OutputStream outputStream) {
+      super(outputStream);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      out.write(buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      // The underlying stream belongs to the HTTP connection.
+      flush();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import android.database.Cursor;
+
+// A growable list of coordinates stored as parallel primitive arrays, so holding a run takes four arrays rather
+// than an object per coordinate.
+public class CoordinateBuffer {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private double[] latitudes;
+  private double[] longitudes;
+  private double[] elevations;
+  private long[] timesElapsed;
+  private int size = 0;
+
+  public CoordinateBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CoordinateBuffer(int capacity) {
+    capacity = Math.max(capacity, 1);
+    latitudes = new double[capacity];
+    longitudes = new double[capacity];
+    elevations = new double[capacity];
+    timesElapsed = new long[capacity];
+  }
+
+  public void add(double latitude, double longitude, double elevation, long timeElapsed) {
+    ensureCapacity(size + 1);
+    latitudes[size] = latitude;
+    longitudes[size] = longitude;
+    elevations[size] = elevation;
+    timesElapsed[size] = timeElapsed;
+    ++size;
+  }
+
+  // Appends the coordinates in the range [from, to) of another buffer.
+  public void addAll(CoordinateBuffer other, int from, int to) {
+    int count = to - from;
+    ensureCapacity(size + count);
+    System.arraycopy(other.latitudes, from, latitudes, size, count);
+    System.arraycopy(other.longitudes, from, longitudes, size, count);
+    System.arraycopy(other.elevations, from, elevations, size, count);
+    System.arraycopy(other.timesElapsed, from, timesElapsed, size, count);
+    size += count;
+  }
+
+  // Appends the remaining rows of a cursor whose first four columns are latitude, longitude, elevation and time elapsed.
+  public void addAll(Cursor cursor) {
+    ensureCapacity(size + cursor.getCount() - cursor.getPosition() - 1);
+    while (cursor.moveToNext()) {
+      add(cursor.getDouble(0), cursor.getDouble(1), cursor.getDouble(2), cursor.getLong(3));
+    }
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity > latitudes.length) {
+      int newCapacity = Math.max(capacity, latitudes.length * 2);
+      latitudes = copyOf(latitudes, newCapacity);
+      longitudes = copyOf(longitudes, newCapacity);
+      elevations = copyOf(elevations, newCapacity);
+      timesElapsed = copyOf(timesElapsed, newCapacity);
+    }
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public double getLatitude(int index) {
+    return latitudes[index];
+  }
+
+  public double getLongitude(int index) {
+    return longitudes[index];
+  }
+
+  public double getElevation(int index) {
+    return elevations[index];
+  }
+
+  public long getTimeElapsed(int index) {
+    return timesElapsed[index];
+  }
+
+  private static double[] copyOf(double[] array, int length) {
+    double[] copy = new double[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  private static long[] copyOf(long[] array, int length) {
+    long[] copy = new long[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import android.database.Cursor;
+
+// Reads the coordinates of a run one at a time, so that callers never need to hold a whole run in memory.
+// Coordinates stored as chunks are decoded one chunk at a time, followed by any coordinate rows.
+public class CoordinateReader {
+  private Cursor chunkCursor;
+  private Cursor rowCursor;
+
+  private CoordinateBuffer chunk = new CoordinateBuffer(TrackCodec.CHUNK_SIZE);
+  private int chunkPos = -1;
+  private boolean readingRows = false;
+
+  public CoordinateReader(Cursor chunkCursor, Cursor rowCursor) {
+    this.chunkCursor = chunkCursor;
+    this.rowCursor = rowCursor;
+  }
+
+  public boolean moveToNext() {
+    if (!readingRows) {
+      ++chunkPos;
+      while (chunkPos >= chunk.size() && chunkCursor.moveToNext()) {
+        chunk.clear();
+        chunkPos = 0;
+        TrackCodec.decode(chunkCursor.getBlob(0), chunk);
+      }
+      if (chunkPos < chunk.size()) {
+        return true;
+      }
+      readingRows = true;
+    }
+    return rowCursor.moveToNext();
+  }
+
+  // Appends up to maxCount of the remaining coordinates to the buffer, returning the number appended.
+  public int read(CoordinateBuffer buffer, int maxCount) {
+    int count = 0;
+    while (count < maxCount && moveToNext()) {
+      buffer.add(getLatitude(), getLongitude(), getElevation(), getTimeElapsed());
+      ++count;
+    }
+    return count;
+  }
+
+  public double getLatitude() {
+    return readingRows ? rowCursor.getDouble(0) : chunk.getLatitude(chunkPos);
+  }
+
+  public double getLongitude() {
+    return readingRows ? rowCursor.getDouble(1) : chunk.getLongitude(chunkPos);
+  }
+
+  public double getElevation() {
+    return readingRows ? rowCursor.getDouble(2) : chunk.getElevation(chunkPos);
+  }
+
+  public long getTimeElapsed() {
+    return readingRows ? rowCursor.getLong(3) : chunk.getTimeElapsed(chunkPos);
+  }
+
+  public void close() {
+    chunkCursor.close();
+    rowCursor.close();
+  }
+}
@@ -26,44 +26,65 @@
 package com.roman.runningmate;
 
 import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 
 public class DataHelper {
   private static final String DATABASE_NAME = "runningmate.db";
-  private static final int DATABASE_VERSION = 1;
+  private static final int DATABASE_VERSION = 5;
+  // Fixture that debug builds load into a new database, see seedFromFixture().
+  private static final String SEED_ASSET = "seed.txt";
+  private static final long DAY = 24 * 60 * 60 * 1000;
+
+  private static final String RUN_SUMMARY_COLUMNS = "run_id, point_count, min_latitude, max_latitude, min_longitude, max_longitude, "
+      + "elevation_gain, elevation_loss, max_speed, last_latitude, last_longitude, last_elevation, last_time_elapsed, finished";
 
   private SQLiteDatabase database;
+  // Whether the database was created when this helper opened it.
+  private boolean newDatabase;
 
   private SQLiteStatement insertRun;
   private SQLiteStatement insertCoordinate;
+  private SQLiteStatement updateRun;
+  private SQLiteStatement insertTrackChunk;
+  private SQLiteStatement replaceRunSummary;
 
   public DataHelper(Context context) {
     OpenHelper openHelper = new OpenHelper(context);
     database = openHelper.getWritableDatabase();
     insertRun = database.compileStatement("INSERT INTO runs(time_start, time_end, distance) VALUES(?, ?, ?)");
     insertCoordinate = database.compileStatement("INSERT INTO coordinates(run_id, latitude, longitude, elevation, time_elapsed) VALUES(?, ?, ?, ?, ?)");
+    updateRun = database.compileStatement("UPDATE runs SET distance = ?, time_end = ? WHERE run_id = ?");
+    insertTrackChunk = database.compileStatement("INSERT INTO track_chunks(run_id, point_count, data) VALUES(?, ?, ?)");
+    replaceRunSummary = database.compileStatement("INSERT OR REPLACE INTO run_summaries(" + RUN_SUMMARY_COLUMNS + ") "
+        + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    newDatabase = openHelper.isCreated();
   }
   
   public void close() {
     database.close();
   }
 
+  // Wrap work the debug harnesses want undone, see SyncEngine.benchmarkMemory(). Never marked successful, so
+  // everything done in between is rolled back when the transaction ends.
+  public void beginRolledBackTransaction() {
+    database.beginTransaction();
+  }
+
+  public void endRolledBackTransaction() {
+    database.endTransaction();
+  }
+
   public long insertRun(long startTime, long endTime, double distance) {
     insertRun.bindLong(1, startTime);
     insertRun.bindLong(2, endTime);
@@ -71,43 +92,144 @@ public class DataHelper {
     return insertRun.executeInsert();
   }
 
-  public long insertCoordinate(Coordinate coordinate, long runId) {
-    insertCoordinate.bindDouble(1, runId);
-    insertCoordinate.bindDouble(2, coordinate.getLatitude());
-    insertCoordinate.bindDouble(3, coordinate.getLongitude());
-    insertCoordinate.bindDouble(4, coordinate.getElevation());
-    insertCoordinate.bindLong(5, coordinate.getTimeElapsed());
+  public long insertCoordinate(CoordinateBuffer coordinates, int index, long runId) {
+    insertCoordinate.bindLong(1, runId);
+    insertCoordinate.bindDouble(2, coordinates.getLatitude(index));
+    insertCoordinate.bindDouble(3, coordinates.getLongitude(index));
+    insertCoordinate.bindDouble(4, coordinates.getElevation(index));
+    insertCoordinate.bindLong(5, coordinates.getTimeElapsed(index));
     return insertCoordinate.executeInsert();
   }
 
-  public List<Coordinate> getCoordinates(long runId) {
-    List<Coordinate> coordinates = new ArrayList<Coordinate>();
-    Cursor cursor = database.rawQuery("SELECT coordinate_id, latitude, longitude, elevation, time_elapsed FROM coordinates WHERE run_id = ? ORDER BY coordinate_id ASC",
+  // Inserts a batch of coordinates and updates the run end time, distance and summary in a single transaction,
+  // so the whole batch costs one commit instead of one per coordinate.
+  public void insertCoordinates(CoordinateBuffer coordinates, long runId, double distance, long timeEnd) {
+    long timeBegin = System.nanoTime();
+
+    database.beginTransaction();
+    try {
+      for (int i = 0; i < coordinates.size(); ++i) {
+        insertCoordinate(coordinates, i, runId);
+      }
+      updateRun(runId, distance, timeEnd);
+
+      RunSummary summary = getRunSummary(runId);
+      if (summary != null) {
+        summary.add(coordinates, 0, coordinates.size());
+      } else {
+        // The first batch of a run, or a run stored before summaries existed that hasn't been backfilled yet, such as
+        // one whose fixes are being recovered from the journal. The batch is already in the stored track.
+        summary = summarizeTrack(runId);
+      }
+      saveRunSummary(summary);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    long timeEndNanos = System.nanoTime();
+    Settings.printLogMessage(getClass().getCanonicalName(), "Inserted batch of " + coordinates.size() + " coordinates in "
+        + ((timeEndNanos - timeBegin) / 1000) + " micros.");
+  }
+
+  // Stores the coordinates in the compact chunk format, appending them after any chunks already stored for the run.
+  public void insertTrack(CoordinateBuffer coordinates, long runId) {
+    for (int from = 0; from < coordinates.size(); from += TrackCodec.CHUNK_SIZE) {
+      int to = Math.min(from + TrackCodec.CHUNK_SIZE, coordinates.size());
+      insertTrackChunk.bindLong(1, runId);
+      insertTrackChunk.bindLong(2, to - from);
+      insertTrackChunk.bindBlob(3, TrackCodec.encode(coordinates, from, to));
+      insertTrackChunk.executeInsert();
+    }
+  }
+
+  // Returns all the coordinates of a run, whether stored as chunks or rows. Chunks always hold the older part of a run.
+  public CoordinateBuffer getCoordinates(long runId) {
+    CoordinateBuffer coordinates = new CoordinateBuffer((int) getCoordinateCount(runId));
+    CoordinateReader reader = readCoordinates(runId);
+    reader.read(coordinates, Integer.MAX_VALUE);
+    reader.close();
+    return coordinates;
+  }
+
+  // Returns a reader over the coordinates of a run, for callers that want to stream them. Must be closed after use.
+  public CoordinateReader readCoordinates(long runId) {
+    String[] selectionArgs = new String[] { Long.toString(runId) };
+    Cursor chunkCursor = database.rawQuery("SELECT data FROM track_chunks WHERE run_id = ? ORDER BY chunk_id ASC", selectionArgs);
+    return new CoordinateReader(chunkCursor, queryCoordinateRows(runId));
+  }
+
+  private Cursor queryCoordinateRows(long runId) {
+    return database.rawQuery("SELECT latitude, longitude, elevation, time_elapsed FROM coordinates WHERE run_id = ? ORDER BY coordinate_id ASC",
         new String[] { Long.toString(runId) });
+  }
+
+  // Moves the coordinate rows of a run into the chunk format.
+  public void compactRun(long runId) {
+    database.beginTransaction();
+    try {
+      CoordinateBuffer coordinates = new CoordinateBuffer();
+      Cursor cursor = queryCoordinateRows(runId);
+      coordinates.addAll(cursor);
+      cursor.close();
+      insertTrack(coordinates, runId);
+      database.delete("coordinates", "run_id = ?", new String[] { Long.toString(runId) });
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  // Moves the coordinate rows of every run, except the one currently being tracked, into the chunk format.
+  public void compactRuns(long activeRunId) {
+    List<Long> runIds = new ArrayList<Long>();
+    Cursor cursor = database.rawQuery("SELECT DISTINCT run_id FROM coordinates WHERE run_id != ?", new String[] { Long.toString(activeRunId) });
+    if (cursor.moveToFirst()) {
+      do {
+        runIds.add(cursor.getLong(0));
+      } while (cursor.moveToNext());
+    }
+    cursor.close();
+
+    for (long runId : runIds) {
+      compactRun(runId);
+      Settings.printLogMessage(getClass().getCanonicalName(), "Compacted coordinates of run " + runId + ".");
+    }
+  }
 
+  public List<Run> getAllRunsSince(long notEarlierThanTimeStart) {
+    List<Run> runs = new ArrayList<Run>();
+
+    Cursor cursor = queryRunsSince(notEarlierThanTimeStart);
     if (cursor.moveToFirst()) {
       do {
-        double latitude = cursor.getDouble(1);
-        double longitude = cursor.getDouble(2);
-        double elevation = cursor.getDouble(3);
-        long timeElapsed = cursor.getLong(4);
-        coordinates.add(new Coordinate(latitude, longitude, elevation, timeElapsed));
+        runs.add(new Run(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getDouble(3)));
       } while (cursor.moveToNext());
     }
     if (cursor != null && !cursor.isClosed()) {
       cursor.close();
     }
-    return coordinates;
+    return runs;
   }
 
-  public List<Run> getAllRunsSince(long notEarlierThanTimeStart) {
+  // Returns a pager over the runs started in [timeFrom, timeTo), newest first if descending. Must be closed after use.
+  public RunHistory getRunHistory(long timeFrom, long timeTo, boolean descending, int pageSize) {
+    return new RunHistory(database, timeFrom, timeTo, descending, pageSize);
+  }
+
+  // Returns the finished runs started after the given time which haven't been synced yet, oldest first. A run only
+  // counts as finished once its summary is, which happens after its last fixes have been saved and compacted, so a run
+  // still being stopped is left for the next sync.
+  public List<Run> getRunsToSync(long notEarlierThanTimeStart, long activeRunId) {
     List<Run> runs = new ArrayList<Run>();
 
-    Cursor cursor = database.query("runs", new String[] { "run_id", "time_start", "time_end", "distance" }, "time_start > ?",
-        new String[] { Long.toString(notEarlierThanTimeStart) }, null, null, null);
+    Cursor cursor = database.rawQuery("SELECT runs.run_id, time_start, time_end, distance FROM runs "
+        + "JOIN run_summaries ON run_summaries.run_id = runs.run_id "
+        + "WHERE time_start > ? AND time_synced = 0 AND runs.run_id != ? AND finished = 1 ORDER BY time_start ASC",
+        new String[] { Long.toString(notEarlierThanTimeStart), Long.toString(activeRunId) });
     if (cursor.moveToFirst()) {
       do {
-        runs.add(new Run(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getDouble(3), null));
+        runs.add(new Run(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getDouble(3)));
       } while (cursor.moveToNext());
     }
     if (cursor != null && !cursor.isClosed()) {
@@ -116,14 +238,350 @@ public class DataHelper {
     return runs;
   }
 
+  // Records that the server has acknowledged the run.
+  public void markRunSynced(long runId, long timeSynced) {
+    database.execSQL("UPDATE runs SET time_synced = ? WHERE run_id = ?", new Object[] { timeSynced, runId });
+  }
+
+  // Returns the number of coordinates stored for the run. Taken from its summary when it has one.
+  public long getCoordinateCount(long runId) {
+    String[] selectionArgs = new String[] { Long.toString(runId) };
+    long pointCount = queryForLong("SELECT IFNULL(MAX(point_count), -1) FROM run_summaries WHERE run_id = ?", selectionArgs);
+    if (pointCount != -1) {
+      return pointCount;
+    }
+    return queryForLong("SELECT COUNT(*) FROM coordinates WHERE run_id = ?", selectionArgs)
+        + queryForLong("SELECT IFNULL(SUM(point_count), 0) FROM track_chunks WHERE run_id = ?", selectionArgs);
+  }
+
+  // Returns the summary of the run, or null if it doesn't have one yet.
+  public RunSummary getRunSummary(long runId) {
+    RunSummary summary = null;
+    Cursor cursor = database.rawQuery("SELECT " + RUN_SUMMARY_COLUMNS + " FROM run_summaries WHERE run_id = ?", new String[] { Long.toString(runId) });
+    if (cursor.moveToFirst()) {
+      summary = new RunSummary(cursor.getLong(0), cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3), cursor.getDouble(4),
+          cursor.getDouble(5), cursor.getDouble(6), cursor.getDouble(7), cursor.getDouble(8), cursor.getDouble(9), cursor.getDouble(10),
+          cursor.getDouble(11), cursor.getLong(12), cursor.getInt(13) != 0);
+    }
+    cursor.close();
+    return summary;
+  }
+
+  private void saveRunSummary(RunSummary summary) {
+    replaceRunSummary.bindLong(1, summary.getRunId());
+    replaceRunSummary.bindLong(2, summary.getPointCount());
+    replaceRunSummary.bindDouble(3, summary.getMinLatitude());
+    replaceRunSummary.bindDouble(4, summary.getMaxLatitude());
+    replaceRunSummary.bindDouble(5, summary.getMinLongitude());
+    replaceRunSummary.bindDouble(6, summary.getMaxLongitude());
+    replaceRunSummary.bindDouble(7, summary.getElevationGain());
+    replaceRunSummary.bindDouble(8, summary.getElevationLoss());
+    replaceRunSummary.bindDouble(9, summary.getMaxSpeed());
+    replaceRunSummary.bindDouble(10, summary.getLastLatitude());
+    replaceRunSummary.bindDouble(11, summary.getLastLongitude());
+    replaceRunSummary.bindDouble(12, summary.getLastElevation());
+    replaceRunSummary.bindLong(13, summary.getLastTimeElapsed());
+    replaceRunSummary.bindLong(14, summary.isFinished() ? 1 : 0);
+    replaceRunSummary.execute();
+  }
+
+  // Marks the summary of a stopped run as final, creating an empty one if no coordinates were ever saved for it.
+  public void finishRunSummary(long runId) {
+    RunSummary summary = getRunSummary(runId);
+    if (summary == null) {
+      summary = new RunSummary(runId);
+    }
+    summary.setFinished(true);
+    saveRunSummary(summary);
+  }
+
+  // Works out the summaries of stored runs that don't have one, such as runs recorded before summaries existed, and
+  // finishes those of runs that were never stopped. The run currently being tracked is left alone, its summary is kept
+  // up to date as it is saved.
+  public void backfillRunSummaries(long activeRunId) {
+    List<Long> runIds = new ArrayList<Long>();
+    Cursor cursor = database.rawQuery("SELECT runs.run_id FROM runs LEFT JOIN run_summaries ON runs.run_id = run_summaries.run_id "
+        + "WHERE run_summaries.run_id IS NULL AND runs.run_id != ?", new String[] { Long.toString(activeRunId) });
+    if (cursor.moveToFirst()) {
+      do {
+        runIds.add(cursor.getLong(0));
+      } while (cursor.moveToNext());
+    }
+    cursor.close();
+
+    for (long runId : runIds) {
+      RunSummary summary = summarizeTrack(runId);
+      summary.setFinished(true);
+      saveRunSummary(summary);
+      Settings.printLogMessage(getClass().getCanonicalName(), "Summarized run " + runId + ".");
+    }
+
+    // Runs that were never stopped, because the app was killed while they were being tracked.
+    database.execSQL("UPDATE run_summaries SET finished = 1 WHERE finished = 0 AND run_id != ?", new Object[] { activeRunId });
+  }
+
+  // Works out the summary of a run from its stored track, a chunk at a time.
+  private RunSummary summarizeTrack(long runId) {
+    RunSummary summary = new RunSummary(runId);
+    CoordinateBuffer coordinates = new CoordinateBuffer(TrackCodec.CHUNK_SIZE);
+    CoordinateReader reader = readCoordinates(runId);
+    try {
+      while (reader.read(coordinates, TrackCodec.CHUNK_SIZE) > 0) {
+        summary.add(coordinates, 0, coordinates.size());
+        coordinates.clear();
+      }
+    } finally {
+      reader.close();
+    }
+    return summary;
+  }
+
+  // Returns the time elapsed of the last coordinate saved for the run, or -1 if there are none. Taken from its summary
+  // when it has one, which is updated with every batch saved, otherwise from the rows and the last chunk stored.
+  public long getLastTimeElapsed(long runId) {
+    RunSummary summary = getRunSummary(runId);
+    if (summary != null && summary.getPointCount() > 0) {
+      return summary.getLastTimeElapsed();
+    }
+
+    String[] selectionArgs = new String[] { Long.toString(runId) };
+    long lastTimeElapsed = queryForLong("SELECT IFNULL(MAX(time_elapsed), -1) FROM coordinates WHERE run_id = ?", selectionArgs);
+    if (lastTimeElapsed == -1) {
+      Cursor cursor = database.rawQuery("SELECT data FROM track_chunks WHERE run_id = ? ORDER BY chunk_id DESC LIMIT 1", selectionArgs);
+      if (cursor.moveToFirst()) {
+        CoordinateBuffer chunk = new CoordinateBuffer(TrackCodec.CHUNK_SIZE);
+        TrackCodec.decode(cursor.getBlob(0), chunk);
+        if (!chunk.isEmpty()) {
+          lastTimeElapsed = chunk.getTimeElapsed(chunk.size() - 1);
+        }
+      }
+      cursor.close();
+    }
+    return lastTimeElapsed;
+  }
+
+  // Returns a cursor over the run_id, time_start, time_end and distance of the runs started after the given time.
+  public Cursor queryRunsSince(long notEarlierThanTimeStart) {
+    return database.query("runs", new String[] { "run_id", "time_start", "time_end", "distance" }, "time_start > ?",
+        new String[] { Long.toString(notEarlierThanTimeStart) }, null, null, "time_start ASC");
+  }
+
   public void updateRun(long runId, double distance, long timeEnd) {
-    ContentValues values = new ContentValues();
-    values.put("distance", distance);
-    values.put("time_end", timeEnd);
-    database.update("runs", values, "run_id = ?", new String[] { Long.toString(runId) });
+    updateRun.bindDouble(1, distance);
+    updateRun.bindLong(2, timeEnd);
+    updateRun.bindLong(3, runId);
+    updateRun.execute();
+  }
+
+  public boolean isNewDatabase() {
+    return newDatabase;
+  }
+
+  // Fills a newly created debug database: from the seed asset if the build has one, otherwise with synthetic runs.
+  // Takes a while, so it belongs on the database writer.
+  public void seedDebugDatabase(Context context) {
+    try {
+      InputStream in = context.getAssets().open(SEED_ASSET);
+      seedFromFixture(in);
+      return;
+    } catch (FileNotFoundException e) {
+      // No seed asset in this build.
+    } catch (IOException e) {
+      Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+    }
+    seedSyntheticRuns(20, 60 * 60, System.currentTimeMillis() - 20 * DAY, 1);
+  }
+
+  // Loads runs from a fixture in a single transaction. Each run is a line of "run,time_start,time_end,distance",
+  // followed by a line of "latitude,longitude,elevation,time_elapsed" for every point of its track. Returns the number
+  // of runs loaded. The stream is closed.
+  public int seedFromFixture(InputStream in) throws IOException {
+    long timeBegin = System.nanoTime();
+    int runCount = 0;
+    CoordinateBuffer track = new CoordinateBuffer(4096);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in), 8192);
+
+    database.beginTransaction();
+    try {
+      long timeStart = 0;
+      long timeEnd = 0;
+      double distance = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0) {
+          continue;
+        }
+        String[] parts = line.split(",");
+        if (parts.length < 4) {
+          throw new IOException("Malformed fixture line: " + line);
+        }
+        if (parts[0].equals("run")) {
+          if (runCount > 0) {
+            insertSeededRun(timeStart, timeEnd, distance, track);
+          }
+          ++runCount;
+          timeStart = Long.parseLong(parts[1]);
+          timeEnd = Long.parseLong(parts[2]);
+          distance = Double.parseDouble(parts[3]);
+          track.clear();
+        } else {
+          track.add(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Long.parseLong(parts[3]));
+        }
+      }
+      if (runCount > 0) {
+        insertSeededRun(timeStart, timeEnd, distance, track);
+      }
+      database.setTransactionSuccessful();
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed fixture: " + e.getMessage());
+    } finally {
+      database.endTransaction();
+      reader.close();
+    }
+
+    Settings.printLogMessage(getClass().getCanonicalName(), "Seeded " + runCount + " runs from fixture in "
+        + ((System.nanoTime() - timeBegin) / 1000000) + " ms.");
+    return runCount;
+  }
+
+  // Stores runCount generated runs of pointCount points each in a single transaction, one a day from firstTimeStart.
+  // The same seed always gives the same runs.
+  public void seedSyntheticRuns(int runCount, int pointCount, long firstTimeStart, long seed) {
+    long timeBegin = System.nanoTime();
+    TrackGenerator generator = new TrackGenerator(seed, 40.7, -74.0);
+    CoordinateBuffer track = new CoordinateBuffer(pointCount);
+
+    database.beginTransaction();
+    try {
+      for (int i = 0; i < runCount; ++i) {
+        track.clear();
+        generator.generate(pointCount, track);
+        long timeStart = firstTimeStart + i * DAY;
+        long timeEnd = timeStart + (pointCount > 0 ? track.getTimeElapsed(pointCount - 1) : 0);
+        insertSeededRun(timeStart, timeEnd, GeoMath.distance(track), track);
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    Settings.printLogMessage(getClass().getCanonicalName(), "Seeded " + runCount + " synthetic runs of " + pointCount + " points in "
+        + ((System.nanoTime() - timeBegin) / 1000000) + " ms.");
+  }
+
+  // Stores a finished run the way it ends up after being tracked: compacted into chunks and with its summary.
+  private void insertSeededRun(long timeStart, long timeEnd, double distance, CoordinateBuffer track) {
+    long runId = insertRun(timeStart, timeEnd, distance);
+    insertTrack(track, runId);
+    RunSummary summary = new RunSummary(runId);
+    summary.add(track, 0, track.size());
+    summary.setFinished(true);
+    saveRunSummary(summary);
+  }
+
+  // Times the run and coordinate lookups against the amount of history stored, to keep an eye on how they scale.
+  // Returns false if the lookups and the paged history don't agree on what is stored.
+  public boolean benchmarkQueries() {
+    long runCount = queryForLong("SELECT COUNT(*) FROM runs");
+    long coordinateCount = queryForLong("SELECT COUNT(*) FROM coordinates");
+
+    long timeBegin = System.nanoTime();
+    List<Run> runs = getAllRunsSince(0);
+    long timeRuns = System.nanoTime();
+
+    long coordinatesRead = 0;
+    long coordinatesExpected = 0;
+    if (runs.size() > 0) {
+      long lastRunId = runs.get(runs.size() - 1).getRunId();
+      coordinatesRead = getCoordinates(lastRunId).size();
+      coordinatesExpected = getCoordinateCount(lastRunId);
+    }
+    long timeCoordinates = System.nanoTime();
+
+    int runsPaged = 0;
+    RunHistory history = getRunHistory(0, Long.MAX_VALUE, true, 50);
+    while (history.nextPage()) {
+      while (history.moveToNext()) {
+        ++runsPaged;
+      }
+    }
+    history.close();
+    long timePaged = System.nanoTime();
+
+    boolean passed = runs.size() == runCount && runsPaged == runCount && coordinatesRead == coordinatesExpected;
+    Settings.printLogMessage(getClass().getCanonicalName(), (passed ? "" : "FAILED: ") + "History of " + runCount + " runs and " + coordinateCount + " coordinates: "
+        + "read " + runs.size() + " runs in " + ((timeRuns - timeBegin) / 1000) + " micros, "
+        + coordinatesRead + " coordinates of the last run in " + ((timeCoordinates - timeRuns) / 1000) + " micros, "
+        + "paged through " + runsPaged + " runs in " + ((timePaged - timeCoordinates) / 1000) + " micros.");
+    return passed;
+  }
+
+  // Compares the row and chunk formats on a synthetic 10 hour track with a fix every second. Everything is written
+  // inside a transaction that is rolled back, so the database is left untouched. Returns false if either format doesn't
+  // read back the whole track, or the chunks don't come out smaller.
+  public boolean benchmarkTrackStorage() {
+    CoordinateBuffer track = new CoordinateBuffer(10 * 60 * 60);
+    for (int i = 0; i < 10 * 60 * 60; ++i) {
+      // A slow loop of a couple of kilometres with some rolling hills.
+      double angle = i * 2 * Math.PI / 3600;
+      track.add(40.7 + 0.003 * Math.sin(angle), -74.0 + 0.004 * Math.cos(angle), 10 + 5 * Math.sin(angle * 7), i * 1000L);
+    }
+
+    long pageSize = queryForLong("PRAGMA page_size");
+    database.beginTransaction();
+    try {
+      long rowsRunId = insertRun(0, 0, 0);
+      long pagesBegin = queryForLong("PRAGMA page_count");
+      for (int i = 0; i < track.size(); ++i) {
+        insertCoordinate(track, i, rowsRunId);
+      }
+      long pagesRows = queryForLong("PRAGMA page_count");
+
+      long chunksRunId = insertRun(0, 0, 0);
+      insertTrack(track, chunksRunId);
+      long pagesChunks = queryForLong("PRAGMA page_count");
+
+      long timeBegin = System.nanoTime();
+      CoordinateBuffer rows = getCoordinates(rowsRunId);
+      long timeRows = System.nanoTime();
+      CoordinateBuffer chunks = getCoordinates(chunksRunId);
+      long timeChunks = System.nanoTime();
+
+      boolean passed = rows.size() == track.size() && chunks.size() == track.size() && pagesChunks - pagesRows < pagesRows - pagesBegin;
+      // Chunks store latitude and longitude in units of 1e-7 degrees, see TrackCodec.
+      for (int i = 0; passed && i < track.size(); ++i) {
+        passed = Math.abs(chunks.getLatitude(i) - track.getLatitude(i)) <= 1E-7 && Math.abs(chunks.getLongitude(i) - track.getLongitude(i)) <= 1E-7
+            && chunks.getTimeElapsed(i) == track.getTimeElapsed(i);
+      }
+      Settings.printLogMessage(getClass().getCanonicalName(), (passed ? "" : "FAILED: ") + "Track of " + track.size() + " coordinates: "
+          + "rows take " + ((pagesRows - pagesBegin) * pageSize) + " bytes and read in " + ((timeRows - timeBegin) / 1000) + " micros, "
+          + "chunks take " + ((pagesChunks - pagesRows) * pageSize) + " bytes and read in " + ((timeChunks - timeRows) / 1000) + " micros.");
+      return passed;
+    } finally {
+      // Never marked successful, so everything is rolled back.
+      database.endTransaction();
+    }
+  }
+
+  private long queryForLong(String sql) {
+    return queryForLong(sql, new String[0]);
+  }
+
+  private long queryForLong(String sql, String[] selectionArgs) {
+    SQLiteStatement statement = database.compileStatement(sql);
+    try {
+      for (int i = 0; i < selectionArgs.length; ++i) {
+        statement.bindString(i + 1, selectionArgs[i]);
+      }
+      return statement.simpleQueryForLong();
+    } finally {
+      statement.close();
+    }
   }
 
   private static class OpenHelper extends SQLiteOpenHelper {
+    private boolean created = false;
+
     public OpenHelper(Context context) {
       super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -147,38 +605,86 @@ public class DataHelper {
                    "FOREIGN KEY(run_id) REFERENCES runs(run_id)" +
                  ")");
 
-      if (Settings.getDebug()) {
-        ExecuteFromNetwork("http://running.mindcache.net/get_runs.php", database);
-      }
+      // Bring the version 1 schema up to date.
+      upgrade(database, 1, DATABASE_VERSION);
+      created = true;
     }
 
-    void ExecuteFromNetwork(String url, SQLiteDatabase database) {
-      DefaultHttpClient httpClient = new DefaultHttpClient();
-      HttpGet httpGet = new HttpGet(url);
-      try {
-        HttpResponse response = httpClient.execute(httpGet);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-
-        String sqlStatement;
-        while ((sqlStatement = reader.readLine()) != null) {
-          if (sqlStatement.length() > 0) {
-            try {
-              Settings.printLogMessage(getClass().getCanonicalName(), "Executing SQL statement: " + sqlStatement);
-              database.execSQL(sqlStatement);
-            } catch (SQLException e) {
-              Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
-            }
-          }
+    // Whether the database was created when it was opened.
+    public boolean isCreated() {
+      return created;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase database) {
+      super.onOpen(database);
+
+      // With write-ahead logging a commit only appends to the log, instead of rewriting the rollback journal and
+      // database pages. SQLite releases older than 3.7.0 don't support it and just report the journal mode in use.
+      if (!database.isReadOnly()) {
+        Cursor cursor = database.rawQuery("PRAGMA journal_mode=WAL", null);
+        if (cursor.moveToFirst()) {
+          Settings.printLogMessage(getClass().getCanonicalName(), "Journal mode: " + cursor.getString(0));
         }
-      } catch (ClientProtocolException e) {
-        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
-      } catch (IOException e) {
-        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+        cursor.close();
       }
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+      upgrade(database, oldVersion, newVersion);
+    }
+
+    // Applies the schema migrations one version at a time. SQLiteOpenHelper runs onCreate() and onUpgrade() inside a
+    // transaction, so a failed migration leaves the database at its old version.
+    private void upgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+      for (int version = oldVersion + 1; version <= newVersion; ++version) {
+        Settings.printLogMessage(getClass().getCanonicalName(), "Migrating database to version " + version + ".");
+        switch (version) {
+          case 2:
+            // Coordinates are always read back per run in insertion order, and runs are looked up by start time.
+            database.execSQL("CREATE INDEX IF NOT EXISTS coordinates_run_id ON coordinates(run_id, coordinate_id)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS runs_time_start ON runs(time_start)");
+            break;
+          case 3:
+            // Compact storage for run tracks, see TrackCodec.
+            database.execSQL("CREATE TABLE track_chunks(" +
+                         "chunk_id INTEGER PRIMARY KEY," +
+                         "run_id INTEGER NOT NULL," +
+                         "point_count INTEGER NOT NULL," +
+                         "data BLOB NOT NULL," +
+                         "FOREIGN KEY(run_id) REFERENCES runs(run_id)" +
+                       ")");
+            database.execSQL("CREATE INDEX track_chunks_run_id ON track_chunks(run_id, chunk_id)");
+            break;
+          case 4:
+            // Time the server acknowledged the run, or 0 if it hasn't been synced yet.
+            database.execSQL("ALTER TABLE runs ADD COLUMN time_synced INTEGER NOT NULL DEFAULT 0");
+            break;
+          case 5:
+            // See RunSummary. Existing runs are summarized by DataHelper.backfillRunSummaries().
+            database.execSQL("CREATE TABLE run_summaries(" +
+                         "run_id INTEGER PRIMARY KEY," +
+                         "point_count INTEGER NOT NULL," +
+                         "min_latitude REAL NOT NULL," +
+                         "max_latitude REAL NOT NULL," +
+                         "min_longitude REAL NOT NULL," +
+                         "max_longitude REAL NOT NULL," +
+                         "elevation_gain REAL NOT NULL," +
+                         "elevation_loss REAL NOT NULL," +
+                         "max_speed REAL NOT NULL," +
+                         "last_latitude REAL NOT NULL," +
+                         "last_longitude REAL NOT NULL," +
+                         "last_elevation REAL NOT NULL," +
+                         "last_time_elapsed INTEGER NOT NULL," +
+                         "finished INTEGER NOT NULL," +
+                         "FOREIGN KEY(run_id) REFERENCES runs(run_id)" +
+                       ")");
+            break;
+          default:
+            throw new IllegalStateException("No migration to database version " + version + ".");
+        }
+      }
     }
   }
 }
@@ -0,0 +1,97 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// The single thread that writes to the database while a run is tracked. Writes are queued as tasks and run in order.
+// The queue is bounded, so if the database falls far behind, the thread submitting work waits instead of queuing
+// batches without limit.
+public class DatabaseWriter extends Thread {
+  private static final Runnable STOP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  private BlockingQueue<Runnable> queue;
+  private volatile int maxQueueDepth = 0;
+
+  public DatabaseWriter(int capacity) {
+    super("DatabaseWriter");
+    setDaemon(true);
+    queue = new ArrayBlockingQueue<Runnable>(capacity);
+  }
+
+  public void submit(Runnable task) {
+    try {
+      queue.put(task);
+    } catch (InterruptedException e) {
+      Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+      Thread.currentThread().interrupt();
+    }
+    maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+  }
+
+  // Number of tasks waiting to run.
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  // Largest number of tasks seen waiting at once.
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  // Runs the tasks already submitted, then stops the thread. Doesn't wait for it, join() does.
+  public void shutdown() {
+    submit(STOP);
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      Runnable task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+        return;
+      }
+      if (task == STOP) {
+        return;
+      }
+
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // A failed write shouldn't take down the writer. Unsaved fixes are still in the journal.
+        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+      }
+    }
+  }
+}
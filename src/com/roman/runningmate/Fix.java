@@ -25,48 +25,45 @@
 
 package com.roman.runningmate;
 
-public class Coordinate {
+// A GPS fix on its way through the fix filters. A single instance is reused for every fix, so filters may adjust it
+// in place but must not hold on to it.
+public class Fix {
   private double latitude;
   private double longitude;
   private double elevation;
-  private long timeElapsed;
+  private long time;  // In milliseconds.
+  private float accuracy;  // In meters, or 0 if unknown.
 
-  public Coordinate(double latitude, double longitude, double elevation, long timeElapsed) {
-    setLatitude(latitude);
-    setLongitude(longitude);
-    setTimeElapsed(timeElapsed);
-    setElevation(elevation);
+  public void set(double latitude, double longitude, double elevation, long time, float accuracy) {
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.elevation = elevation;
+    this.time = time;
+    this.accuracy = accuracy;
   }
 
-  public void setLatitude(double latitude) {
+  public void setPosition(double latitude, double longitude) {
     this.latitude = latitude;
+    this.longitude = longitude;
   }
 
   public double getLatitude() {
     return latitude;
   }
 
-  public void setLongitude(double longitude) {
-    this.longitude = longitude;
-  }
-
   public double getLongitude() {
     return longitude;
   }
 
-  public void setElevation(double elevation) {
-    this.elevation = elevation;
-  }
-
   public double getElevation() {
     return elevation;
   }
 
-  public void setTimeElapsed(long timeElapsed) {
-    this.timeElapsed = timeElapsed;
+  public long getTime() {
+    return time;
   }
 
-  public long getTimeElapsed() {
-    return timeElapsed;
+  public float getAccuracy() {
+    return accuracy;
   }
 }
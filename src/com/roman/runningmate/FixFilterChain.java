@@ -0,0 +1,254 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.util.Random;
+
+// Runs GPS fixes through a chain of filters before they are counted towards the run distance and stored. The default
+// chain drops fixes with poor accuracy, then fixes that would mean moving implausibly fast, and smooths what remains
+// with a constant velocity Kalman filter.
+public class FixFilterChain implements FixFilter {
+  private static final float MAX_ACCURACY = 30;  // In meters.
+  private static final double MAX_SPEED = 12;  // In meters per second, faster than any runner.
+  private static final double ACCELERATION_NOISE = 1;  // Variance of the runner's acceleration, in (m/s^2)^2.
+
+  private FixFilter[] filters;
+
+  public FixFilterChain(FixFilter... filters) {
+    this.filters = filters;
+  }
+
+  public static FixFilterChain createDefault() {
+    return new FixFilterChain(new AccuracyGate(MAX_ACCURACY), new SpeedGate(MAX_SPEED), new KalmanSmoother(ACCELERATION_NOISE));
+  }
+
+  @Override
+  public boolean filter(Fix fix) {
+    for (FixFilter filter : filters) {
+      if (!filter.filter(fix)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    for (FixFilter filter : filters) {
+      filter.reset();
+    }
+  }
+
+  // Adds deterministic GPS noise to a ground truth track, with the odd multipath jump, and logs the distance measured
+  // with and without the filters against the true distance. Returns false if the filters made the distance worse, or
+  // rejected more than one fix in twenty.
+  public boolean replay(CoordinateBuffer groundTruth, long seed) {
+    Random random = new Random(seed);
+    Fix fix = new Fix();
+    double metersPerDegree = GeoMath.EARTH_RADIUS * Math.PI / 180;
+    reset();
+
+    double rawDistance = 0;
+    double filteredDistance = 0;
+    double lastRawLatitude = 0;
+    double lastRawLongitude = 0;
+    double lastLatitude = 0;
+    double lastLongitude = 0;
+    boolean hasRaw = false;
+    boolean hasFiltered = false;
+    int rejected = 0;
+
+    for (int i = 0; i < groundTruth.size(); ++i) {
+      double latitude = groundTruth.getLatitude(i);
+      float accuracy = 5 + 10 * random.nextFloat();
+      double noise = random.nextDouble() < 0.01 ? 60 : accuracy / 2;  // One fix in a hundred jumps.
+      double noisyLatitude = latitude + random.nextGaussian() * noise / metersPerDegree;
+      double noisyLongitude = groundTruth.getLongitude(i) + random.nextGaussian() * noise / (metersPerDegree * Math.cos(GeoMath.toRadians(latitude)));
+
+      if (hasRaw) {
+        rawDistance += GeoMath.distance(lastRawLatitude, lastRawLongitude, noisyLatitude, noisyLongitude);
+      }
+      hasRaw = true;
+      lastRawLatitude = noisyLatitude;
+      lastRawLongitude = noisyLongitude;
+
+      fix.set(noisyLatitude, noisyLongitude, groundTruth.getElevation(i), groundTruth.getTimeElapsed(i), accuracy);
+      if (!filter(fix)) {
+        ++rejected;
+        continue;
+      }
+      if (hasFiltered) {
+        filteredDistance += GeoMath.distance(lastLatitude, lastLongitude, fix.getLatitude(), fix.getLongitude());
+      }
+      hasFiltered = true;
+      lastLatitude = fix.getLatitude();
+      lastLongitude = fix.getLongitude();
+    }
+
+    double trueDistance = GeoMath.distance(groundTruth);
+    boolean passed = Math.abs(filteredDistance - trueDistance) <= Math.abs(rawDistance - trueDistance) && rejected * 20 <= groundTruth.size();
+    Settings.printLogMessage(getClass().getCanonicalName(), (passed ? "" : "FAILED: ") + "True distance " + trueDistance + " meters, unfiltered "
+        + rawDistance + " meters, filtered " + filteredDistance + " meters with " + rejected + " of " + groundTruth.size() + " fixes rejected.");
+    return passed;
+  }
+
+  // Rejects fixes whose reported accuracy is worse than a limit. Fixes without an accuracy are let through.
+  public static class AccuracyGate implements FixFilter {
+    private float maxAccuracy;
+
+    public AccuracyGate(float maxAccuracy) {
+      this.maxAccuracy = maxAccuracy;
+    }
+
+    @Override
+    public boolean filter(Fix fix) {
+      return fix.getAccuracy() <= maxAccuracy;
+    }
+
+    @Override
+    public void reset() {
+    }
+  }
+
+  // Rejects fixes that would mean moving faster than a limit since the last accepted fix.
+  public static class SpeedGate implements FixFilter {
+    private double maxSpeed;
+
+    private boolean hasLastFix = false;
+    private double lastLatitude;
+    private double lastLongitude;
+    private long lastTime;
+
+    public SpeedGate(double maxSpeed) {
+      this.maxSpeed = maxSpeed;
+    }
+
+    @Override
+    public boolean filter(Fix fix) {
+      if (hasLastFix) {
+        if (fix.getTime() <= lastTime) {
+          return false;
+        }
+        // Allow for the fix's own error, so that jitter at low speeds isn't mistaken for a jump.
+        double distance = GeoMath.distance(lastLatitude, lastLongitude, fix.getLatitude(), fix.getLongitude()) - fix.getAccuracy();
+        if (distance * 1000 / (fix.getTime() - lastTime) > maxSpeed) {
+          return false;
+        }
+      }
+      hasLastFix = true;
+      lastLatitude = fix.getLatitude();
+      lastLongitude = fix.getLongitude();
+      lastTime = fix.getTime();
+      return true;
+    }
+
+    @Override
+    public void reset() {
+      hasLastFix = false;
+    }
+  }
+
+  // Smooths positions with a constant velocity Kalman filter, run separately on the east and north axes of a local
+  // flat projection around the first fix. The measurement noise comes from each fix's accuracy.
+  public static class KalmanSmoother implements FixFilter {
+    private static final double DEFAULT_ACCURACY = 10;  // In meters, for fixes without one.
+    private static final double METERS_PER_DEGREE = GeoMath.EARTH_RADIUS * Math.PI / 180;
+
+    private double accelerationNoise;
+
+    private boolean initialized = false;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLongitude;
+    private long lastTime;
+
+    // State and covariance of each axis: position, velocity, and the covariance entries p00, p01 and p11.
+    private double[] east = new double[5];
+    private double[] north = new double[5];
+
+    public KalmanSmoother(double accelerationNoise) {
+      this.accelerationNoise = accelerationNoise;
+    }
+
+    @Override
+    public boolean filter(Fix fix) {
+      double accuracy = fix.getAccuracy() > 0 ? fix.getAccuracy() : DEFAULT_ACCURACY;
+      double variance = accuracy * accuracy;
+
+      if (!initialized) {
+        initialized = true;
+        originLatitude = fix.getLatitude();
+        originLongitude = fix.getLongitude();
+        metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(GeoMath.toRadians(originLatitude));
+        lastTime = fix.getTime();
+        initialize(east, 0, variance);
+        initialize(north, 0, variance);
+        return true;
+      }
+
+      double dt = Math.max(fix.getTime() - lastTime, 0) / 1000.0;
+      lastTime = fix.getTime();
+      update(east, (fix.getLongitude() - originLongitude) * metersPerDegreeLongitude, variance, dt);
+      update(north, (fix.getLatitude() - originLatitude) * METERS_PER_DEGREE, variance, dt);
+
+      fix.setPosition(originLatitude + north[0] / METERS_PER_DEGREE, originLongitude + east[0] / metersPerDegreeLongitude);
+      return true;
+    }
+
+    @Override
+    public void reset() {
+      initialized = false;
+    }
+
+    private static void initialize(double[] axis, double position, double variance) {
+      axis[0] = position;
+      axis[1] = 0;
+      axis[2] = variance;
+      axis[3] = 0;
+      axis[4] = variance;
+    }
+
+    private void update(double[] axis, double measurement, double variance, double dt) {
+      // Predict.
+      double dt2 = dt * dt;
+      axis[0] += axis[1] * dt;
+      double p00 = axis[2] + 2 * dt * axis[3] + dt2 * axis[4] + accelerationNoise * dt2 * dt2 / 4;
+      double p01 = axis[3] + dt * axis[4] + accelerationNoise * dt2 * dt / 2;
+      double p11 = axis[4] + accelerationNoise * dt2;
+
+      // Correct.
+      double s = p00 + variance;
+      double k0 = p00 / s;
+      double k1 = p01 / s;
+      double residual = measurement - axis[0];
+      axis[0] += k0 * residual;
+      axis[1] += k1 * residual;
+      axis[2] = (1 - k0) * p00;
+      axis[3] = (1 - k0) * p01;
+      axis[4] = p11 - k1 * p01;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// An append-only journal of the fixes of the current run that haven't been saved to the database yet. The file is
+// memory-mapped, so appending a fix is a few memory writes, and the data survives the process being killed since the
+// kernel still owns the dirty pages. It is replayed into the database when the service starts, and truncated after
+// every successful flush. Fixes are appended by the thread processing them and the journal is truncated by the
+// database writer, so its methods are synchronized.
+//
+// Layout: a header holding a magic number, the number of fixes, the run id and the run start time, followed by
+// fixed-size records of latitude, longitude, elevation, time elapsed and the run distance up to the fix.
+// The record is written before the count, so a partially written record is never replayed.
+public class FixJournal {
+  private static final String FILE_NAME = "fixes.journal";
+  private static final int MAGIC = 0x524D4A31;  // "RMJ1"
+
+  private static final int COUNT_OFFSET = 4;
+  private static final int RUN_ID_OFFSET = 8;
+  private static final int RUN_STARTED_TIME_OFFSET = 16;
+  private static final int HEADER_SIZE = 24;
+  private static final int RECORD_SIZE = 40;
+
+  private int capacity;
+  private MappedByteBuffer buffer;
+  private int count;
+
+  public FixJournal(File directory, int capacity) throws IOException {
+    this.capacity = capacity;
+    RandomAccessFile file = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+    try {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    } finally {
+      // The mapping stays valid after the file is closed.
+      file.close();
+    }
+
+    if (buffer.getInt(0) != MAGIC) {
+      buffer.putLong(RUN_ID_OFFSET, -1);
+      buffer.putInt(COUNT_OFFSET, 0);
+      buffer.putInt(0, MAGIC);
+    }
+    count = Math.min(Math.max(buffer.getInt(COUNT_OFFSET), 0), capacity);
+  }
+
+  // Starts journaling a new run, discarding anything left in the journal.
+  public synchronized void begin(long runId, long runStartedTime) {
+    buffer.putInt(COUNT_OFFSET, 0);
+    buffer.putLong(RUN_ID_OFFSET, runId);
+    buffer.putLong(RUN_STARTED_TIME_OFFSET, runStartedTime);
+    count = 0;
+  }
+
+  // Appends a fix, returning false if the journal is full.
+  public synchronized boolean append(double latitude, double longitude, double elevation, long timeElapsed, double runDistance) {
+    if (count >= capacity) {
+      return false;
+    }
+    int offset = HEADER_SIZE + count * RECORD_SIZE;
+    buffer.putDouble(offset, latitude);
+    buffer.putDouble(offset + 8, longitude);
+    buffer.putDouble(offset + 16, elevation);
+    buffer.putLong(offset + 24, timeElapsed);
+    buffer.putDouble(offset + 32, runDistance);
+    buffer.putInt(COUNT_OFFSET, ++count);
+    return true;
+  }
+
+  // Forgets the fixes of the run up to the given time elapsed, once they have been saved to the database. Fixes
+  // appended since the flush was handed off are moved to the front of the journal.
+  public synchronized void truncate(long runId, long savedTimeElapsed) {
+    if (buffer.getLong(RUN_ID_OFFSET) != runId) {
+      // A new run has been started since, and the journal was already reset.
+      return;
+    }
+    int flushedCount = 0;
+    while (flushedCount < count && buffer.getLong(HEADER_SIZE + flushedCount * RECORD_SIZE + 24) <= savedTimeElapsed) {
+      ++flushedCount;
+    }
+    int remaining = count - flushedCount;
+    for (int i = 0; i < remaining * RECORD_SIZE; i += 8) {
+      buffer.putLong(HEADER_SIZE + i, buffer.getLong(HEADER_SIZE + flushedCount * RECORD_SIZE + i));
+    }
+    count = remaining;
+    buffer.putInt(COUNT_OFFSET, count);
+  }
+
+  // Saves any fixes left over from a run that was interrupted into the database, then truncates the journal.
+  public synchronized void replay(DataHelper dataHelper) {
+    // Read again, since the writer of a previous instance of the service may have truncated the file since it was
+    // mapped.
+    count = Math.min(Math.max(buffer.getInt(COUNT_OFFSET), 0), capacity);
+    long runId = buffer.getLong(RUN_ID_OFFSET);
+    if (count > 0 && runId != -1) {
+      // The process may have been killed after a flush was committed but before the journal was truncated, and the
+      // run may have been compacted into chunks since.
+      long lastSavedTimeElapsed = dataHelper.getLastTimeElapsed(runId);
+
+      CoordinateBuffer coordinates = new CoordinateBuffer(count);
+      double runDistance = 0;
+      for (int i = 0; i < count; ++i) {
+        int offset = HEADER_SIZE + i * RECORD_SIZE;
+        if (buffer.getLong(offset + 24) > lastSavedTimeElapsed) {
+          coordinates.add(buffer.getDouble(offset), buffer.getDouble(offset + 8), buffer.getDouble(offset + 16), buffer.getLong(offset + 24));
+          runDistance = buffer.getDouble(offset + 32);
+        }
+      }
+
+      if (!coordinates.isEmpty()) {
+        long timeEnd = buffer.getLong(RUN_STARTED_TIME_OFFSET) + coordinates.getTimeElapsed(coordinates.size() - 1);
+        dataHelper.insertCoordinates(coordinates, runId, runDistance, timeEnd);
+        Settings.printLogMessage(getClass().getCanonicalName(), "Recovered " + coordinates.size() + " coordinates of run " + runId + ".");
+      }
+    }
+    buffer.putInt(COUNT_OFFSET, 0);
+    buffer.putLong(RUN_ID_OFFSET, -1);
+    count = 0;
+  }
+}
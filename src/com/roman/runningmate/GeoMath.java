@@ -0,0 +1,161 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+// Distances on the Earth's surface, in meters, treating the Earth as a sphere. Latitudes and longitudes are in
+// degrees unless a method says otherwise.
+//
+// Consecutive GPS fixes are only a few meters apart, so most segments take the equirectangular fast path, which needs
+// no trigonometry once a point's latitude in radians and its cosine are known. Longer segments use the haversine
+// formula. Callers working through a track should convert each point once with toRadians() and Math.cos(), and use
+// the radian based methods.
+// http://www.movable-type.co.uk/scripts/latlong.html
+public class GeoMath {
+  public static final double EARTH_RADIUS = 6371000;  // Mean radius of the Earth in meters.
+
+  // Largest latitude or longitude difference, in radians, that takes the equirectangular fast path (about 1 km).
+  // Over that distance the error is well under a millimeter.
+  private static final double FAST_PATH_MAX_DELTA = 1.5E-4;
+
+  private static final double DEGREES_TO_RADIANS = Math.PI / 180;
+  // Largest relative error benchmark() allows against the references and against the haversine formula.
+  private static final double BENCHMARK_TOLERANCE = 0.005;
+
+  public static double toRadians(double degrees) {
+    return degrees * DEGREES_TO_RADIANS;
+  }
+
+  public static double distance(double latitudeA, double longitudeA, double latitudeB, double longitudeB) {
+    double latitudeRadiansA = toRadians(latitudeA);
+    double latitudeRadiansB = toRadians(latitudeB);
+    return distanceRadians(latitudeRadiansA, toRadians(longitudeA), Math.cos(latitudeRadiansA), latitudeRadiansB, toRadians(longitudeB),
+        Math.cos(latitudeRadiansB));
+  }
+
+  // Distance between two points given in radians, along with the cosine of each latitude.
+  public static double distanceRadians(double latitudeA, double longitudeA, double cosLatitudeA, double latitudeB, double longitudeB,
+      double cosLatitudeB) {
+    double deltaLatitude = latitudeB - latitudeA;
+    double deltaLongitude = longitudeB - longitudeA;
+    if (deltaLongitude > Math.PI) {
+      deltaLongitude -= 2 * Math.PI;
+    } else if (deltaLongitude < -Math.PI) {
+      deltaLongitude += 2 * Math.PI;
+    }
+
+    if (Math.abs(deltaLatitude) < FAST_PATH_MAX_DELTA && Math.abs(deltaLongitude) < FAST_PATH_MAX_DELTA) {
+      // Equirectangular projection around the segment, with the mean of the two cosines standing in for the cosine of
+      // the mean latitude.
+      double x = deltaLongitude * 0.5 * (cosLatitudeA + cosLatitudeB);
+      return EARTH_RADIUS * Math.sqrt(x * x + deltaLatitude * deltaLatitude);
+    }
+    return haversineRadians(deltaLatitude, deltaLongitude, cosLatitudeA, cosLatitudeB);
+  }
+
+  // Haversine distance, exact on a sphere for any two points.
+  public static double haversine(double latitudeA, double longitudeA, double latitudeB, double longitudeB) {
+    double latitudeRadiansA = toRadians(latitudeA);
+    double latitudeRadiansB = toRadians(latitudeB);
+    return haversineRadians(latitudeRadiansB - latitudeRadiansA, toRadians(longitudeB - longitudeA), Math.cos(latitudeRadiansA),
+        Math.cos(latitudeRadiansB));
+  }
+
+  private static double haversineRadians(double deltaLatitude, double deltaLongitude, double cosLatitudeA, double cosLatitudeB) {
+    double sinHalfDeltaLatitude = Math.sin(deltaLatitude / 2);
+    double sinHalfDeltaLongitude = Math.sin(deltaLongitude / 2);
+    double a = sinHalfDeltaLatitude * sinHalfDeltaLatitude + cosLatitudeA * cosLatitudeB * sinHalfDeltaLongitude * sinHalfDeltaLongitude;
+    return 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+  }
+
+  // Length of the whole track.
+  public static double distance(CoordinateBuffer coordinates) {
+    return distance(coordinates, 0, coordinates.size());
+  }
+
+  // Length of the track between the coordinates in the range [from, to).
+  public static double distance(CoordinateBuffer coordinates, int from, int to) {
+    if (to - from < 2) {
+      return 0;
+    }
+
+    double distance = 0;
+    double lastLatitude = toRadians(coordinates.getLatitude(from));
+    double lastLongitude = toRadians(coordinates.getLongitude(from));
+    double lastCosLatitude = Math.cos(lastLatitude);
+    for (int i = from + 1; i < to; ++i) {
+      double latitude = toRadians(coordinates.getLatitude(i));
+      double longitude = toRadians(coordinates.getLongitude(i));
+      double cosLatitude = Math.cos(latitude);
+      distance += distanceRadians(lastLatitude, lastLongitude, lastCosLatitude, latitude, longitude, cosLatitude);
+      lastLatitude = latitude;
+      lastLongitude = longitude;
+      lastCosLatitude = cosLatitude;
+    }
+    return distance;
+  }
+
+  // Checks the kernel against reference distances and the haversine formula, and times it over a synthetic track.
+  // Logs the results and returns false if any check is off by more than the tolerance.
+  public static boolean benchmark() {
+    boolean passed = true;
+    // Reference great circle distances on a sphere of the same radius.
+    double[][] references = new double[][] {
+        { 51.5007, -0.1246, 40.6892, -74.0445, 5574840.5 },  // Big Ben to the Statue of Liberty.
+        { 0, 0, 0, 1, 111194.9 },  // One degree along the equator.
+        { 60, 0, 60, 1, 55596.9 },  // One degree of longitude at 60 degrees north.
+        { 40.7, -74.0, 40.7001, -74.0, 11.12 },  // About 11 meters apart, through the fast path.
+    };
+    for (double[] reference : references) {
+      double distance = distance(reference[0], reference[1], reference[2], reference[3]);
+      boolean close = Math.abs(distance - reference[4]) <= BENCHMARK_TOLERANCE * reference[4];
+      passed = passed && close;
+      Settings.printLogMessage(GeoMath.class.getCanonicalName(), (close ? "" : "FAILED: ") + "Distance " + distance + " meters, expected "
+          + reference[4] + " meters.");
+    }
+
+    CoordinateBuffer track = new CoordinateBuffer(10 * 60 * 60);
+    for (int i = 0; i < 10 * 60 * 60; ++i) {
+      double angle = i * 2 * Math.PI / 3600;
+      track.add(40.7 + 0.003 * Math.sin(angle), -74.0 + 0.004 * Math.cos(angle), 0, i * 1000L);
+    }
+
+    long timeBegin = System.nanoTime();
+    double fastDistance = distance(track);
+    long timeFast = System.nanoTime();
+    double haversineDistance = 0;
+    for (int i = 1; i < track.size(); ++i) {
+      haversineDistance += haversine(track.getLatitude(i - 1), track.getLongitude(i - 1), track.getLatitude(i), track.getLongitude(i));
+    }
+    long timeHaversine = System.nanoTime();
+
+    boolean close = Math.abs(fastDistance - haversineDistance) <= BENCHMARK_TOLERANCE * haversineDistance;
+    passed = passed && close;
+    Settings.printLogMessage(GeoMath.class.getCanonicalName(), (close ? "" : "FAILED: ") + "Track of " + track.size() + " coordinates: "
+        + fastDistance + " meters in " + ((timeFast - timeBegin) / 1000) + " micros, haversine " + haversineDistance + " meters in "
+        + ((timeHaversine - timeFast) / 1000) + " micros.");
+    return passed;
+  }
+}
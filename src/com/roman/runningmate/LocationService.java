@@ -25,46 +25,102 @@
 
 package com.roman.runningmate;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.database.SQLException;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.widget.Toast;
 
+// Tracks runs in the background. Fixes are delivered to and processed on a dedicated location thread, which owns all
+// the state of the run being tracked. Batches of fixes are handed to the database writer thread, and UI listeners are
+// notified by posting to the main thread, so neither the location thread nor the UI ever waits on the other.
 public class LocationService extends Service {
+  // Number of fixes to collect before saving them to the database.
+  private static final int FLUSH_SIZE = 256;
+  // Number of database writes that can be waiting before the location thread has to wait for the writer.
+  private static final int WRITE_QUEUE_SIZE = 8;
+  // Number of stored points handed to a new track listener at a time, see addTrackListener().
+  private static final int RESTORE_PAGE_SIZE = 1024;
+  // Runs the checks and benchmarks in debug builds, see runDiagnostics(). For example:
+  //   adb shell am startservice -a com.roman.runningmate.RUN_DIAGNOSTICS
+  public static final String ACTION_RUN_DIAGNOSTICS = "com.roman.runningmate.RUN_DIAGNOSTICS";
+
   private final IBinder binder = new LocalBinder();
 
-  private MockLocationProvider mockLocationProvider = null;
-  private boolean mockLocationProviderFinished = true;
-  
   private DataHelper dataHelper;
+  private DatabaseWriter databaseWriter;
 
   private LocationManager locationManager = null;
   private LocationListener locationListener;
-
-  private Coordinate currCoordinate = null;
-  private long runId = -1;
+  private HandlerThread locationThread;
+  private Handler locationHandler;
+  private Handler mainHandler;
+  // Feeds a recorded track in place of the GPS in debug builds, see startRun(). Set on the main thread.
+  private volatile TrackReplayer trackReplayer = null;
+
+  // Listeners for the fixes of the run being tracked. Only changed on the location thread, so adding and removing a
+  // listener happen in the order they were asked for. The array is replaced rather than modified, so the main thread
+  // can be handed whatever array was current when a fix arrived.
+  private RestoringTrackListener[] trackListeners = new RestoringTrackListener[0];
+
+  // The writer of the previous instance of the service, which may still be saving its last fixes. Only accessed on the
+  // main thread.
+  private static DatabaseWriter previousDatabaseWriter = null;
+
+  // The run being tracked, as seen by the main thread.
+  private volatile long runId = -1;
+  // Set on the main thread while the writer inserts a run that is being started, see startRun().
+  private boolean runStarting = false;
+  private boolean stopWhenStarted = false;
+  private boolean destroyed = false;
+
+  // Everything below is only accessed on the location thread.
+  private long trackedRunId = -1;
   private long runStartedTime = 0;
   private double runDistance = 0;
-
-  private ArrayList<Coordinate> coordinates = new ArrayList<Coordinate>();
+  private FixJournal fixJournal = null;
+  private SamplingScheduler samplingScheduler = new SamplingScheduler(Settings.getMinSamplingInterval(), Settings.getMaxSamplingInterval());
+  // Fixes are filtered before they count towards the run. They are then simplified before being stored, while the run
+  // distance is worked out from every fix that got through the filters.
+  private FixFilterChain fixFilterChain = FixFilterChain.createDefault();
+  private Fix fix = new Fix();
+  private TrackSimplifier trackSimplifier = new TrackSimplifier(Settings.getSimplificationTolerance());
+  // Read by screens on the main thread, see getRunStatistics().
+  private final RunStatistics runStatistics = new RunStatistics();
+
+  // The last fix received, to work out the distance covered.
+  private boolean hasLastFix = false;
+  private double lastLatitude;  // In radians.
+  private double lastLongitude;  // In radians.
+  private double lastCosLatitude;
+
+  // Simplified fixes waiting to be saved to the database, and the number of fixes received since the last save.
+  // Saves go by the number of fixes received, which bounds what the journal has to hold.
+  private CoordinateBuffer coordinates = new CoordinateBuffer(FLUSH_SIZE);
+  private int unsavedFixCount = 0;
+
+  // Time spent processing fixes since the last flush, in nanoseconds.
+  private long fixCount = 0;
+  private long fixProcessingTime = 0;
+  private long maxFixProcessingTime = 0;
+  // Fixes the journal had no room for since the last flush, which would be lost if the process were killed.
+  private int unjournaledFixCount = 0;
+
+  // Receives the fixes of the run being tracked on the main thread, once they have been filtered.
+  public interface TrackListener {
+    void onFix(double latitude, double longitude, double elevation, long timeElapsed);
+  }
 
   // Class for clients to access.
   public class LocalBinder extends Binder {
@@ -75,6 +131,10 @@ public class LocationService extends Service {
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
+    // The intent is null when the service is restarted after being killed.
+    if (Settings.getDebug() && intent != null && ACTION_RUN_DIAGNOSTICS.equals(intent.getAction())) {
+      runDiagnostics();
+    }
     // We want this service to continue running until it is explicitly stopped, so return sticky.
     return START_STICKY;
   }
@@ -88,13 +148,30 @@ public class LocationService extends Service {
   public void onDestroy() {
     Settings.printLogMessage(getClass().getCanonicalName(), "onDestroy() called.");
     super.onDestroy();
-    // Clean up here.
-    dataHelper.close();
-    locationManager = null;
-    currCoordinate = null;
+    // Clean up here. The location thread saves what it has buffered and hands the writer the last of its work, and the
+    // writer closes the database once that is done. Neither is waited for, see onCreate().
+    destroyed = true;
+    if (trackReplayer != null) {
+      trackReplayer.cancel();
+    }
+    locationHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        saveCoordinates();
+        // Removed after the run is cleared, so a fix still queued can't request updates again, see processFix().
+        trackedRunId = -1;
+        locationManager.removeUpdates(locationListener);
+        databaseWriter.submit(new Runnable() {
+          @Override
+          public void run() {
+            dataHelper.close();
+          }
+        });
+        databaseWriter.shutdown();
+        locationThread.quit();
+      }
+    });
     runId = -1;
-    runStartedTime = 0;
-    runDistance = 0;
   }
 
   @Override
@@ -103,24 +180,54 @@ public class LocationService extends Service {
     super.onCreate();
 
     dataHelper = new DataHelper(this);
+    try {
+      // Fixes are only truncated once the writer has saved them, so the journal has to hold every batch the write
+      // queue can hold, the one being written, the one being collected and the points the simplifier is holding back.
+      fixJournal = new FixJournal(getFilesDir(), (WRITE_QUEUE_SIZE + 2) * FLUSH_SIZE + TrackSimplifier.MAX_WINDOW);
+    } catch (IOException e) {
+      // We can still track runs, we just can't recover unsaved fixes if the process is killed.
+      Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+    }
 
-    locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-    locationListener = new LocationListener() {
+    final DatabaseWriter previousWriter = previousDatabaseWriter;
+    databaseWriter = new DatabaseWriter(WRITE_QUEUE_SIZE);
+    previousDatabaseWriter = databaseWriter;
+    databaseWriter.start();
+    // The main thread never waits on the writer, so everything that reads or writes the database on startup is the
+    // writer's first task, ahead of any run being started.
+    databaseWriter.submit(new Runnable() {
       @Override
-      public void onLocationChanged(Location loc) {
-        long timeElapsed = loc.getTime() - runStartedTime;
-        Coordinate coordinate = new Coordinate(loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), timeElapsed);
-
-        if (currCoordinate != null) {
-          runDistance += distance(currCoordinate, coordinate);
+      public void run() {
+        if (previousWriter != null) {
+          try {
+            previousWriter.join();
+          } catch (InterruptedException e) {
+            Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (fixJournal != null) {
+          fixJournal.replay(dataHelper);
         }
-        currCoordinate = coordinate;
+        if (Settings.getDebug() && dataHelper.isNewDatabase()) {
+          dataHelper.seedDebugDatabase(LocationService.this);
+        }
+        // No run is being tracked yet, so every stored run can be compacted.
+        dataHelper.compactRuns(-1);
+        dataHelper.backfillRunSummaries(-1);
+      }
+    });
 
-        coordinates.add(coordinate);
+    locationThread = new HandlerThread("LocationThread");
+    locationThread.start();
+    locationHandler = new Handler(locationThread.getLooper());
+    mainHandler = new Handler();
 
-        if (coordinates.size() >= 256) {
-          saveCoordinates();
-        }
+    locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+    locationListener = new LocationListener() {
+      @Override
+      public void onLocationChanged(Location loc) {
+        processFix(loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), loc.getTime(), loc.hasAccuracy() ? loc.getAccuracy() : 0);
       }
 
       @Override
@@ -138,189 +245,431 @@ public class LocationService extends Service {
     };
   }
 
-  public class MockLocationProvider extends Thread {
-    private List<String> locations;
-
-    public MockLocationProvider(List<String> locations) {
-      setDaemon(true);
-      this.locations = locations;
-    }
-
-    @Override
-    public void run() {
-      for (String str : locations) {
+  // Runs the checks and benchmarks on the writer, after whatever it has queued, and logs whether they all passed. They
+  // take a while and read the whole history, so they are only run when asked for.
+  private void runDiagnostics() {
+    databaseWriter.submit(new Runnable() {
+      @Override
+      public void run() {
+        long timeBegin = System.nanoTime();
+        int failures = 0;
+        failures += dataHelper.benchmarkQueries() ? 0 : 1;
+        failures += dataHelper.benchmarkTrackStorage() ? 0 : 1;
+        failures += GeoMath.benchmark() ? 0 : 1;
+        failures += RunStatistics.benchmark() ? 0 : 1;
         try {
-          Thread.sleep(1000);
-        } catch (InterruptedException e) {
+          failures += SyncEngine.benchmarkMemory(dataHelper) ? 0 : 1;
+        } catch (IOException e) {
           Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+          ++failures;
         }
 
-        String[] parts = str.split(",");
-        Double latitude = Double.valueOf(parts[0]);
-        Double longitude = Double.valueOf(parts[1]);
-        Double altitude = Double.valueOf(parts[2]);
-        Location location = new Location(LocationManager.GPS_PROVIDER);
-        location.setLatitude(latitude);
-        location.setLongitude(longitude);
-        location.setAltitude(altitude);
-
-        // Must set the time.
-        location.setTime(System.currentTimeMillis());
+        long lastRunId = getLastRunId(0);
+        if (lastRunId != -1) {
+          CoordinateBuffer lastRun = dataHelper.getCoordinates(lastRunId);
+          failures += new SamplingScheduler(Settings.getMinSamplingInterval(), Settings.getMaxSamplingInterval()).replay(lastRun) ? 0 : 1;
+          failures += new TrackSimplifier(Settings.getSimplificationTolerance()).replay(lastRun) ? 0 : 1;
+          failures += FixFilterChain.createDefault().replay(lastRun, 1) ? 0 : 1;
+        }
 
-        locationManager.setTestProviderLocation(LocationManager.GPS_PROVIDER, location);
+        Settings.printLogMessage(getClass().getCanonicalName(), (failures == 0 ? "Diagnostics passed" : "Diagnostics FAILED: " + failures
+            + " checks failed") + " in " + ((System.nanoTime() - timeBegin) / 1000000) + " ms.");
       }
-      mockLocationProviderFinished = true;
+    });
+  }
+
+  // Runs a fix from the GPS, or from a track being replayed, through the tracking pipeline. Called on the location thread.
+  void processFix(double latitude, double longitude, double altitude, long time, float accuracy) {
+    if (trackedRunId == -1) {
+      // A fix that was already queued when the run was stopped.
+      return;
+    }
+    long timeBegin = System.nanoTime();
+
+    if (samplingScheduler.onFix(latitude, longitude, time, accuracy) && !Settings.getDebug()) {
+      // Replaces the current request for updates. Debug builds never use the GPS, see beginRun().
+      locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, samplingScheduler.getInterval(), samplingScheduler.getMinDistance(),
+          locationListener, locationThread.getLooper());
     }
+
+    fix.set(latitude, longitude, altitude, time, accuracy);
+    if (fixFilterChain.filter(fix)) {
+      addFix(fix);
+      dispatchFix(fix.getLatitude(), fix.getLongitude(), fix.getElevation(), fix.getTime() - runStartedTime);
+    }
+
+    long fixTime = System.nanoTime() - timeBegin;
+    ++fixCount;
+    fixProcessingTime += fixTime;
+    maxFixProcessingTime = Math.max(maxFixProcessingTime, fixTime);
   }
 
-  public void registerLocationListener(LocationListener locationListener) {
-    locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 10000, 0, locationListener);
+  // Counts a fix that made it through the filters towards the run, and queues it to be stored. Called on the location thread.
+  private void addFix(Fix fix) {
+    long timeElapsed = fix.getTime() - runStartedTime;
+    double latitude = GeoMath.toRadians(fix.getLatitude());
+    double longitude = GeoMath.toRadians(fix.getLongitude());
+    double cosLatitude = Math.cos(latitude);
+
+    if (hasLastFix) {
+      runDistance += GeoMath.distanceRadians(lastLatitude, lastLongitude, lastCosLatitude, latitude, longitude, cosLatitude);
+    }
+    hasLastFix = true;
+    lastLatitude = latitude;
+    lastLongitude = longitude;
+    lastCosLatitude = cosLatitude;
+    runStatistics.update(fix.getTime(), runDistance);
+
+    trackSimplifier.add(fix.getLatitude(), fix.getLongitude(), fix.getElevation(), timeElapsed, coordinates);
+    if (fixJournal != null && !fixJournal.append(fix.getLatitude(), fix.getLongitude(), fix.getElevation(), timeElapsed, runDistance)) {
+      ++unjournaledFixCount;
+    }
+
+    if (++unsavedFixCount >= FLUSH_SIZE) {
+      saveCoordinates();
+    }
   }
 
-  public void removeLocationListener(LocationListener locationListener) {
-    locationManager.removeUpdates(locationListener);
+  // Hands a fix to the listeners registered at this point. Called on the location thread.
+  private void dispatchFix(final double latitude, final double longitude, final double elevation, final long timeElapsed) {
+    final RestoringTrackListener[] listeners = trackListeners;
+    if (listeners.length > 0) {
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          for (TrackListener listener : listeners) {
+            listener.onFix(latitude, longitude, elevation, timeElapsed);
+          }
+        }
+      });
+    }
   }
 
-  public void startRun() {
-    if (runId == -1) {
-      if (Settings.getDebug()) {
-        // Use mock locations.
-        locationManager.addTestProvider(LocationManager.GPS_PROVIDER, false, false, false, false, true, true, true, 0, 5);
-        locationManager.setTestProviderEnabled(LocationManager.GPS_PROVIDER, true);
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListener);
-
-        // Don't want multiple instances of the mock location provider thread running (causes chaotic results!).
-        if (mockLocationProvider == null || mockLocationProviderFinished == true) {
-          List<String> locations = new ArrayList<String>();
-          String locationsUrl = "http://running.mindcache.net/locations.php";
-          DefaultHttpClient httpClient = new DefaultHttpClient();
-          HttpGet httpGet = new HttpGet(locationsUrl);
-          try {
-            HttpResponse response = httpClient.execute(httpGet);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-            String location;
-            while ((location = reader.readLine()) != null) {
-              if (location.length() > 0) {
-                try {
-                  locations.add(location);
-                } catch (SQLException e) {
-                  Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+  // Registers a listener to be given the fixes of the run being tracked, on the main thread. The listener is first
+  // given the track of the run so far, from the database and then from the points the service is holding, followed by
+  // every new fix. All the service's listeners share its one subscription to the GPS.
+  public void addTrackListener(TrackListener listener) {
+    final long timeBegin = System.nanoTime();
+    final RestoringTrackListener restoringListener = new RestoringTrackListener(listener);
+
+    // Registering on the location thread means no fix can arrive between taking the held points and adding the listener.
+    locationHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        final CoordinateBuffer held = new CoordinateBuffer(coordinates.size());
+        held.addAll(coordinates, 0, coordinates.size());
+        final long restoredRunId = trackedRunId;
+
+        RestoringTrackListener[] listeners = new RestoringTrackListener[trackListeners.length + 1];
+        System.arraycopy(trackListeners, 0, listeners, 0, trackListeners.length);
+        listeners[trackListeners.length] = restoringListener;
+        trackListeners = listeners;
+
+        // The writer runs this after every batch saved before the held points were taken and before any saved after,
+        // so the stored points and the held points make up the whole track so far.
+        databaseWriter.submit(new Runnable() {
+          @Override
+          public void run() {
+            int restoredCount = held.size();
+            if (restoredRunId != -1) {
+              CoordinateReader reader = dataHelper.readCoordinates(restoredRunId);
+              try {
+                while (true) {
+                  final CoordinateBuffer page = new CoordinateBuffer(RESTORE_PAGE_SIZE);
+                  if (reader.read(page, RESTORE_PAGE_SIZE) == 0) {
+                    break;
+                  }
+                  restoredCount += page.size();
+                  mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                      restoringListener.restore(page);
+                    }
+                  });
                 }
+              } finally {
+                reader.close();
               }
             }
 
-            mockLocationProviderFinished = false;
-            mockLocationProvider = new MockLocationProvider(locations);
-            mockLocationProvider.start();
-          } catch (ClientProtocolException e) {
-            Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
-          } catch (IOException e) {
-            Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+            final int count = restoredCount;
+            mainHandler.post(new Runnable() {
+              @Override
+              public void run() {
+                restoringListener.restore(held);
+                restoringListener.finishRestoring();
+                Settings.printLogMessage(getClass().getCanonicalName(), "Restored " + count + " points to a track listener in "
+                    + ((System.nanoTime() - timeBegin) / 1000000) + " ms.");
+              }
+            });
           }
-        }
-      } else {
-        // We send location updates every 10 seconds.
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 10000, 0, locationListener);
+        });
       }
-
-      // Insert a run into the database. We'll update the end time and distance as we get more coordinates.
-      long currTime = System.currentTimeMillis();
-      runId = dataHelper.insertRun(currTime, currTime, 0);
-    }
+    });
   }
 
-  // Returns the distance between two coordinates in meters using the spherical law of cosines formula.
-  // http://www.movable-type.co.uk/scripts/latlong.html
-  public double distance(Coordinate a, Coordinate b) {
-    double R = 6371000; // Radius of the Earth in meters.
-    return Math.toRadians(Math.acos(Math.sin(a.getLatitude()) * Math.sin(b.getLatitude()) + Math.cos(a.getLatitude()) * Math.cos(b.getLatitude())
-        * Math.cos(b.getLongitude() - a.getLongitude())))
-        * R;
+  // Unregisters a listener. Like registering, this is done on the location thread, so a listener removed before its
+  // registration got to run is still removed.
+  public void removeTrackListener(final TrackListener listener) {
+    locationHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        int index = -1;
+        for (int i = 0; i < trackListeners.length; ++i) {
+          if (trackListeners[i].listener == listener) {
+            index = i;
+          }
+        }
+        if (index != -1) {
+          RestoringTrackListener[] listeners = new RestoringTrackListener[trackListeners.length - 1];
+          System.arraycopy(trackListeners, 0, listeners, 0, index);
+          System.arraycopy(trackListeners, index + 1, listeners, index, listeners.length - index);
+          trackListeners = listeners;
+        }
+      }
+    });
   }
 
-  public void stopRun() {
-    if (runId != -1) {
-      locationManager.removeUpdates(locationListener);
-      saveCoordinates();
-      dataHelper.updateRun(runId, runDistance, System.currentTimeMillis());
+  // Wraps a listener while the track so far is handed to it, holding back new fixes until it has all been given.
+  // Only used on the main thread.
+  private static class RestoringTrackListener implements TrackListener {
+    final TrackListener listener;
+    private CoordinateBuffer heldFixes = new CoordinateBuffer();
+    private boolean restoring = true;
 
-      currCoordinate = null;
-      runId = -1;
-      runStartedTime = 0;
-      runDistance = 0;
+    RestoringTrackListener(TrackListener listener) {
+      this.listener = listener;
+    }
 
-      Toast.makeText(this, "Run Saved!", Toast.LENGTH_LONG).show();
+    @Override
+    public void onFix(double latitude, double longitude, double elevation, long timeElapsed) {
+      if (restoring) {
+        heldFixes.add(latitude, longitude, elevation, timeElapsed);
+      } else {
+        listener.onFix(latitude, longitude, elevation, timeElapsed);
+      }
     }
-  }
 
-  // Insert coordinates into database and update the run end time and run distance.
-  public void saveCoordinates() {
-    if (coordinates.size() > 0) {
-      for (Coordinate coordinate : coordinates) {
-        dataHelper.insertCoordinate(coordinate, runId);
+    void restore(CoordinateBuffer points) {
+      for (int i = 0; i < points.size(); ++i) {
+        listener.onFix(points.getLatitude(i), points.getLongitude(i), points.getElevation(i), points.getTimeElapsed(i));
       }
+    }
 
-      Coordinate lastCoordinate = coordinates.get(coordinates.size() - 1);
-      dataHelper.updateRun(runId, runDistance, runStartedTime + lastCoordinate.getTimeElapsed());
+    void finishRestoring() {
+      restoring = false;
+      restore(heldFixes);
+      heldFixes = null;
+    }
+  }
 
-      coordinates.clear();
+  // Starts tracking a new run. The run is inserted by the writer, and tracking begins once the writer hands its id back
+  // to the main thread, see beginRun().
+  public void startRun() {
+    if (runId == -1 && !runStarting) {
+      runStarting = true;
+      final long currTime = System.currentTimeMillis();
+      databaseWriter.submit(new Runnable() {
+        @Override
+        public void run() {
+          // Insert a run into the database. We'll update the end time and distance as we get more coordinates.
+          final long startedRunId = dataHelper.insertRun(currTime, currTime, 0);
+          // Read here rather than on the main thread.
+          final CoordinateBuffer replayTrack = Settings.getDebug() ? readReplayTrack() : null;
+          mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              beginRun(startedRunId, currTime, replayTrack);
+            }
+          });
+        }
+      });
     }
   }
 
-  public String getRunsJson(long lastSyncedRunStartTime) {
-    long timeBegin = System.currentTimeMillis();
+  // Starts tracking a run the writer has inserted. Called on the main thread.
+  private void beginRun(final long startedRunId, long currTime, CoordinateBuffer replayTrack) {
+    runStarting = false;
+    if (destroyed) {
+      // The service was destroyed in the meantime. The run is finished off with the others on the next start.
+      return;
+    }
+    runId = startedRunId;
 
-    // Find all runs that came later than the last synced run.
-    List<Run> allRuns = dataHelper.getAllRunsSince(lastSyncedRunStartTime);
-//    List<Run> runs = allRuns.subList(allRuns.size() - 2, allRuns.size());  // TODO: For debugging purposes.
-    List<Run> runs = allRuns;
+    // Fixes are delivered to the location thread after this has run, since they go through the same looper.
+    locationHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        trackedRunId = startedRunId;
+        runStartedTime = 0;
+        runDistance = 0;
+        hasLastFix = false;
+        coordinates.clear();
+        unsavedFixCount = 0;
+        samplingScheduler.reset();
+        fixFilterChain.reset();
+        runStatistics.reset();
+        trackSimplifier.reset();
+        if (fixJournal != null) {
+          fixJournal.begin(trackedRunId, runStartedTime);
+        }
+      }
+    });
 
-    // Build JSON string based on all runs later than the last synced run.
-    StringBuilder json = new StringBuilder("{\"runs\":[");
+    if (Settings.getDebug()) {
+      // Replay a recorded track instead of using the GPS.
+      if (replayTrack != null && replayTrack.size() > 0) {
+        trackReplayer = new TrackReplayer(this, locationHandler, replayTrack, Settings.getReplaySpeed(), currTime);
+        trackReplayer.start();
+      }
+    } else {
+      // Start at the minimum interval, the sampling scheduler adjusts it as the run goes on.
+      locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, Settings.getMinSamplingInterval(), 0, locationListener,
+          locationThread.getLooper());
+    }
 
-    // TODO: These need to be split up since the JSON String can become very large.
-    //       Best solution might be to stream the post data in chunks.
-    //       A problem with App Engine could also be that we time out, since writes to the datastore are sort of slow.
-    for (Run run : runs) {
-      if (runs.get(0) != run)
-        json.append(",");
+    if (stopWhenStarted) {
+      stopWhenStarted = false;
+      stopRun();
+    }
+  }
 
-      json.append("{\"time_start\":\"");
-      json.append(run.getTimeStart());
+  public void stopRun() {
+    if (runStarting) {
+      // Stopped before the writer handed back the run, which is stopped as soon as it is, see beginRun().
+      stopWhenStarted = true;
+      return;
+    }
+    if (runId != -1) {
+      if (trackReplayer != null) {
+        trackReplayer.cancel();
+        trackReplayer = null;
+      }
+      runId = -1;
 
-      json.append("\",\"time_end\":\"");
-      json.append(run.getTimeEnd());
+      locationHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          trackSimplifier.finish(coordinates);
+          saveCoordinates();
+          Settings.printLogMessage(getClass().getCanonicalName(), trackSimplifier.getStatistics());
+
+          final long stoppedRunId = trackedRunId;
+          final double distance = runDistance;
+          final long timeEnd = System.currentTimeMillis();
+          databaseWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+              dataHelper.updateRun(stoppedRunId, distance, timeEnd);
+              // Every fix of the run has been saved by now.
+              if (fixJournal != null) {
+                fixJournal.truncate(stoppedRunId, Long.MAX_VALUE);
+              }
+              dataHelper.compactRun(stoppedRunId);
+              dataHelper.finishRunSummary(stoppedRunId);
+            }
+          });
+
+          Settings.printLogMessage(getClass().getCanonicalName(), "Sampling scheduler took " + samplingScheduler.getFixCount() + " fixes, instead of "
+              + samplingScheduler.getBaselineFixCount() + " at the minimum interval.");
+
+          trackedRunId = -1;
+          hasLastFix = false;
+          runStartedTime = 0;
+          runDistance = 0;
+          // Removed here rather than on the main thread, since a fix processed before this could otherwise request
+          // updates again. Fixes still queued behind this are dropped, see processFix().
+          locationManager.removeUpdates(locationListener);
+        }
+      });
 
-      json.append("\",\"distance\":\"");
-      json.append(run.getDistance());
+      Toast.makeText(this, "Run Saved!", Toast.LENGTH_LONG).show();
+    }
+  }
 
-      json.append("\",\"coordinates\":[");
-      List<Coordinate> coordinates = dataHelper.getCoordinates(run.getRunId());
-      for (Coordinate coordinate : coordinates) {
-        if (coordinates.get(0) != coordinate)
-          json.append(",");
+  // Reads the track to replay in debug builds: the replay file in the app's files directory if there is one, otherwise
+  // the last run stored. Called on the writer.
+  private CoordinateBuffer readReplayTrack() {
+    File file = new File(getFilesDir(), Settings.getReplayFile());
+    if (file.exists()) {
+      try {
+        return TrackReplayer.readTrack(new FileInputStream(file));
+      } catch (IOException e) {
+        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+      }
+    }
 
-        json.append("{\"latitude\":\"");
-        json.append(coordinate.getLatitude());
+    // The last run is the one just started.
+    long lastRunId = getLastRunId(1);
+    if (lastRunId != -1) {
+      return dataHelper.getCoordinates(lastRunId);
+    }
+    return null;
+  }
 
-        json.append("\",\"longitude\":\"");
-        json.append(coordinate.getLongitude());
+  // Returns the id of the run started last after skipping the given number of the latest runs, or -1 if there is none.
+  private long getLastRunId(int skip) {
+    long lastRunId = -1;
+    RunHistory history = dataHelper.getRunHistory(0, Long.MAX_VALUE, true, skip + 1);
+    if (history.nextPage()) {
+      for (int i = 0; i <= skip && history.moveToNext(); ++i) {
+        if (i == skip) {
+          lastRunId = history.getRunId();
+        }
+      }
+    }
+    history.close();
+    return lastRunId;
+  }
 
-        json.append("\",\"elevation\":\"");
-        json.append(coordinate.getElevation());
+  // Hands the coordinates to the database writer, which inserts them and updates the run end time and run distance.
+  // Called on the location thread.
+  private void saveCoordinates() {
+    unsavedFixCount = 0;
+    if (coordinates.size() > 0) {
+      final CoordinateBuffer batch = coordinates;
+      final long batchRunId = trackedRunId;
+      final double distance = runDistance;
+      final long timeEnd = runStartedTime + batch.getTimeElapsed(batch.size() - 1);
+      coordinates = new CoordinateBuffer(FLUSH_SIZE);
+
+      databaseWriter.submit(new Runnable() {
+        @Override
+        public void run() {
+          dataHelper.insertCoordinates(batch, batchRunId, distance, timeEnd);
+          // Truncated here rather than on the location thread, whose looper may already have quit.
+          if (fixJournal != null) {
+            fixJournal.truncate(batchRunId, batch.getTimeElapsed(batch.size() - 1));
+          }
+        }
+      });
 
-        json.append("\",\"time_elapsed\":\"");
-        json.append(coordinate.getTimeElapsed());
-        json.append("\"}");
+      if (fixCount > 0) {
+        Settings.printLogMessage(getClass().getCanonicalName(), "Processed " + fixCount + " fixes in " + (fixProcessingTime / fixCount / 1000)
+            + " micros on average, " + (maxFixProcessingTime / 1000) + " micros at most. Write queue depth " + databaseWriter.getQueueDepth()
+            + ", at most " + databaseWriter.getMaxQueueDepth() + ".");
       }
-
-      json.append("]}");
+      if (unjournaledFixCount > 0) {
+        Settings.printLogMessage(getClass().getCanonicalName(), "Journal was full, " + unjournaledFixCount + " fixes were not journaled.");
+      }
+      fixCount = 0;
+      fixProcessingTime = 0;
+      maxFixProcessingTime = 0;
+      unjournaledFixCount = 0;
     }
-    json.append("]}");
+  }
 
-    long timeEnd = System.currentTimeMillis();
+  // Live statistics of the run being tracked. Cheap to poll, see RunStatistics.copyTo().
+  public RunStatistics getRunStatistics() {
+    return runStatistics;
+  }
+
+  public DataHelper getDataHelper() {
+    return dataHelper;
+  }
 
-    Settings.printLogMessage(getClass().getCanonicalName(), "Time to get runs: " + (timeEnd - timeBegin) + " millis.\n");
-    return json.toString();
+  // Returns the id of the run being tracked, or -1 if there is none.
+  public long getRunId() {
+    return runId;
   }
 }
@@ -0,0 +1,131 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+
+// The HTTP client shared by everything in the application. Connections are pooled and kept alive between requests,
+// and cookies are persisted, so the login, the sync requests and any debug downloads reuse the same connections
+// and the same session. Responses must be fully read (or their content consumed) to release their connection.
+public class NetworkClient {
+  private static final int MAX_CONNECTIONS = 4;
+
+  private static final String REQUEST_START_TIME = "com.roman.runningmate.request_start_time";
+  private static final String REQUEST_SENT_TIME = "com.roman.runningmate.request_sent_time";
+
+  private static DefaultHttpClient httpClient = null;
+
+  public static synchronized DefaultHttpClient getHttpClient(Context context) {
+    if (httpClient == null) {
+      HttpParams params = new BasicHttpParams();
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+      HttpProtocolParams.setContentCharset(params, "UTF-8");
+      HttpConnectionParams.setConnectionTimeout(params, Settings.getConnectTimeout());
+      HttpConnectionParams.setSoTimeout(params, Settings.getSocketTimeout());
+      HttpConnectionParams.setStaleCheckingEnabled(params, true);
+      ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+      ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+
+      SchemeRegistry schemeRegistry = new SchemeRegistry();
+      schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+      schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+      httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+      httpClient.setCookieStore(new PersistentCookieStore(context.getApplicationContext()));
+
+      // Request interceptors run once the connection to the server has been established, and response interceptors
+      // once the response headers have arrived.
+      httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+          context.setAttribute(REQUEST_SENT_TIME, System.currentTimeMillis());
+        }
+      });
+      httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+        @Override
+        public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+          Long startTime = (Long) context.getAttribute(REQUEST_START_TIME);
+          Long sentTime = (Long) context.getAttribute(REQUEST_SENT_TIME);
+          if (startTime != null && sentTime != null) {
+            Settings.printLogMessage(NetworkClient.class.getCanonicalName(), "Connected in " + (sentTime - startTime) + " millis, response after "
+                + (System.currentTimeMillis() - sentTime) + " millis.");
+          }
+        }
+      });
+    }
+    return httpClient;
+  }
+
+  // Executes the request on the shared client, logging the time taken to connect and to get a response.
+  public static HttpResponse execute(Context context, HttpUriRequest request) throws IOException {
+    HttpContext httpContext = new BasicHttpContext();
+    httpContext.setAttribute(REQUEST_START_TIME, System.currentTimeMillis());
+    Settings.printLogMessage(NetworkClient.class.getCanonicalName(), request.getMethod() + " " + request.getURI());
+    return getHttpClient(context).execute(request, httpContext);
+  }
+
+  // Reads the whole response body, releasing the connection, and logs the time taken to transfer it.
+  public static String readResponse(HttpResponse response) throws IOException {
+    long timeBegin = System.currentTimeMillis();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
+    StringBuffer content = new StringBuffer();
+    String line = "";
+    while ((line = reader.readLine()) != null) {
+      content.append(line + '\n');
+    }
+    reader.close();
+    long timeEnd = System.currentTimeMillis();
+
+    Settings.printLogMessage(NetworkClient.class.getCanonicalName(), "Read " + content.length() + " characters in " + (timeEnd - timeBegin) + " millis.");
+    return content.toString();
+  }
+}
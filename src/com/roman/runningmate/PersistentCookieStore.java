@@ -0,0 +1,108 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Cookie store that is saved to shared preferences, so that cookies such as the App Engine ACSID login cookie
+// outlive the activity or process that received them.
+public class PersistentCookieStore implements CookieStore {
+  private static final String PREFERENCES_NAME = "cookies";
+
+  private BasicCookieStore cookieStore = new BasicCookieStore();
+  private SharedPreferences preferences;
+
+  public PersistentCookieStore(Context context) {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      // Fields are stored as name, value, domain, path, expiry time (or 0 for session cookies), secure and version.
+      String[] fields = ((String) entry.getValue()).split("\t", -1);
+      if (fields.length != 7) {
+        continue;
+      }
+      BasicClientCookie cookie = new BasicClientCookie(fields[0], fields[1]);
+      cookie.setDomain(fields[2]);
+      cookie.setPath(fields[3]);
+      long expiryTime = Long.parseLong(fields[4]);
+      if (expiryTime != 0) {
+        cookie.setExpiryDate(new Date(expiryTime));
+      }
+      cookie.setSecure(Boolean.parseBoolean(fields[5]));
+      cookie.setVersion(Integer.parseInt(fields[6]));
+      cookieStore.addCookie(cookie);
+    }
+    clearExpired(new Date());
+  }
+
+  @Override
+  public synchronized void addCookie(Cookie cookie) {
+    cookieStore.addCookie(cookie);
+    save();
+  }
+
+  @Override
+  public synchronized List<Cookie> getCookies() {
+    return cookieStore.getCookies();
+  }
+
+  @Override
+  public synchronized boolean clearExpired(Date date) {
+    boolean cleared = cookieStore.clearExpired(date);
+    if (cleared) {
+      save();
+    }
+    return cleared;
+  }
+
+  @Override
+  public synchronized void clear() {
+    cookieStore.clear();
+    save();
+  }
+
+  private void save() {
+    SharedPreferences.Editor editor = preferences.edit();
+    editor.clear();
+    for (Cookie cookie : cookieStore.getCookies()) {
+      long expiryTime = cookie.getExpiryDate() != null ? cookie.getExpiryDate().getTime() : 0;
+      editor.putString(cookie.getName() + "\t" + cookie.getDomain() + "\t" + cookie.getPath(),
+          cookie.getName() + "\t" + cookie.getValue() + "\t" + cookie.getDomain() + "\t" + cookie.getPath() + "\t" + expiryTime + "\t"
+              + cookie.isSecure() + "\t" + cookie.getVersion());
+    }
+    editor.commit();
+  }
+}
@@ -25,21 +25,17 @@
 
 package com.roman.runningmate;
 
-import java.util.ArrayList;
-
 public class Run {
-  private ArrayList<Coordinate> coordinates;
   private long runId;
   private long timeStart;
   private long timeEnd;
   private double distance;
 
-  public Run(long runId, long timeStart, long timeEnd, double distance, ArrayList<Coordinate> coordinates) {
+  public Run(long runId, long timeStart, long timeEnd, double distance) {
     this.runId = runId;
     this.timeStart = timeStart;
     this.timeEnd = timeEnd;
     this.distance = distance;
-    this.coordinates = coordinates;
   }
 
   public void setTimeStart(long timeStart) {
@@ -58,14 +54,6 @@ public class Run {
     return timeEnd;
   }
 
-  public void setCoordinates(ArrayList<Coordinate> coordinates) {
-    this.coordinates = coordinates;
-  }
-
-  public ArrayList<Coordinate> getCoordinates() {
-    return coordinates;
-  }
-
   public void setDistance(double distance) {
     this.distance = distance;
   }
@@ -0,0 +1,146 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+// Pages through the stored runs in start time order, optionally limited to runs started within a time range. Each page
+// is found from where the last one stopped, by (time_start, run_id), rather than by an offset, and that key bounds the
+// index search, so fetching a page costs the same however deep into the history it is. Rows are read straight from the
+// cursor of the current page, so paging through thousands of runs only ever holds one page in memory.
+//
+//   RunHistory history = dataHelper.getRunHistory(0, Long.MAX_VALUE, true, 50);
+//   while (history.nextPage()) {
+//     while (history.moveToNext()) {
+//       ... history.getRunId() ...
+//     }
+//   }
+//   history.close();
+public class RunHistory {
+  private static final String COLUMNS = "run_id, time_start, time_end, distance";
+
+  private final SQLiteDatabase database;
+  private final long timeFrom;
+  private final long timeTo;
+  private final boolean descending;
+  private final int pageSize;
+
+  private Cursor cursor = null;
+  private boolean started = false;
+  private boolean finished = false;
+  // Key of the last row of the current page.
+  private long lastTimeStart;
+  private long lastRunId;
+
+  // Covers the runs started in [timeFrom, timeTo), newest first if descending.
+  RunHistory(SQLiteDatabase database, long timeFrom, long timeTo, boolean descending, int pageSize) {
+    this.database = database;
+    this.timeFrom = timeFrom;
+    this.timeTo = timeTo;
+    this.descending = descending;
+    this.pageSize = pageSize;
+  }
+
+  // Moves on to the next page, returning false when there are no more runs.
+  public boolean nextPage() {
+    if (cursor != null) {
+      if (cursor.getCount() > 0) {
+        cursor.moveToLast();
+        lastTimeStart = cursor.getLong(1);
+        lastRunId = cursor.getLong(0);
+      }
+      finished = cursor.getCount() < pageSize;
+      cursor.close();
+      cursor = null;
+    }
+    if (finished) {
+      return false;
+    }
+
+    String order = descending ? " DESC" : " ASC";
+    String limit = Integer.toString(pageSize);
+    // The key of the last row is folded into the time range, so the runs_time_start index is searched from where the
+    // last page stopped rather than from the start of the range. The index holds run_id as the row id, and only the
+    // runs started at the same time as the last row are left for the tie break on run_id.
+    long from = timeFrom;
+    long to = timeTo;
+    String where = "time_start >= ? AND time_start < ?";
+    String[] selectionArgs;
+    if (!started) {
+      started = true;
+      selectionArgs = new String[] { Long.toString(from), Long.toString(to) };
+    } else {
+      if (descending) {
+        to = Math.min(timeTo, lastTimeStart + 1);
+        where += " AND (time_start < ? OR run_id < ?)";
+      } else {
+        from = Math.max(timeFrom, lastTimeStart);
+        where += " AND (time_start > ? OR run_id > ?)";
+      }
+      selectionArgs = new String[] { Long.toString(from), Long.toString(to), Long.toString(lastTimeStart), Long.toString(lastRunId) };
+    }
+    cursor = database.rawQuery("SELECT " + COLUMNS + " FROM runs WHERE " + where + " ORDER BY time_start" + order + ", run_id" + order
+        + " LIMIT " + limit, selectionArgs);
+
+    if (cursor.getCount() == 0) {
+      cursor.close();
+      cursor = null;
+      finished = true;
+      return false;
+    }
+    return true;
+  }
+
+  // Moves to the next run of the current page.
+  public boolean moveToNext() {
+    return cursor != null && cursor.moveToNext();
+  }
+
+  public long getRunId() {
+    return cursor.getLong(0);
+  }
+
+  public long getTimeStart() {
+    return cursor.getLong(1);
+  }
+
+  public long getTimeEnd() {
+    return cursor.getLong(2);
+  }
+
+  public double getDistance() {
+    return cursor.getDouble(3);
+  }
+
+  public void close() {
+    if (cursor != null) {
+      cursor.close();
+      cursor = null;
+    }
+    finished = true;
+  }
+}
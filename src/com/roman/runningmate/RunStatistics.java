@@ -0,0 +1,257 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+// Live statistics of the run being tracked, updated with every fix in constant amortized time. Recent fixes are kept
+// in ring buffers of time and distance covered, so pace over a rolling window is worked out from the oldest fix still
+// in the window, without going back over the run.
+//
+// Fixes are added on the location thread while screens read the statistics on the main thread, so both go through
+// the object's lock. Readers copy into a Snapshot they keep, so polling allocates nothing.
+public class RunStatistics {
+  public static final double METERS_PER_KILOMETER = 1000;
+  public static final double METERS_PER_MILE = 1609.344;
+
+  private static final long PACE_TIME_WINDOW = 60000;  // In milliseconds.
+  private static final double PACE_DISTANCE_WINDOW = 400;  // In meters.
+  private static final double MOVING_SPEED = 0.5;  // Slowest speed counted as moving, in meters per second.
+  // Enough for the time window at 10 fixes per second. At higher rates the window just gets shorter.
+  private static final int WINDOW_CAPACITY = 1024;
+
+  // Everything a screen might show, copied out of the engine in one go.
+  public static class Snapshot {
+    public long elapsedTime;  // In milliseconds.
+    public long movingTime;  // In milliseconds.
+    public double distance;  // In meters.
+    public double averageSpeed;  // Over the elapsed time, in meters per second.
+    public double averageMovingSpeed;  // Over the moving time, in meters per second.
+    public double timeWindowPace;  // Over the last minute, in seconds per kilometer, or 0 if not moving.
+    public double distanceWindowPace;  // Over the last 400 meters, in seconds per kilometer, or 0 if not moving.
+    public int kilometerSplits;  // Number of whole kilometers covered.
+    public long lastKilometerSplit;  // Time taken for the last whole kilometer, in milliseconds.
+    public int mileSplits;
+    public long lastMileSplit;
+  }
+
+  private TimeDistanceWindow timeWindow = new TimeDistanceWindow(WINDOW_CAPACITY);
+  private TimeDistanceWindow distanceWindow = new TimeDistanceWindow(WINDOW_CAPACITY);
+  private Splits kilometerSplits = new Splits(METERS_PER_KILOMETER);
+  private Splits mileSplits = new Splits(METERS_PER_MILE);
+
+  private boolean hasLastFix = false;
+  private long firstTime;
+  private long lastTime;
+  private double lastDistance;
+  private long movingTime;
+
+  public synchronized void reset() {
+    hasLastFix = false;
+    movingTime = 0;
+    lastDistance = 0;
+    timeWindow.clear();
+    distanceWindow.clear();
+    kilometerSplits.clear();
+    mileSplits.clear();
+  }
+
+  // Takes the time of a fix, in milliseconds, and the run distance up to it, in meters.
+  public synchronized void update(long time, double distance) {
+    if (!hasLastFix) {
+      hasLastFix = true;
+      firstTime = time;
+    } else {
+      if (time <= lastTime) {
+        return;
+      }
+      long timeDelta = time - lastTime;
+      if ((distance - lastDistance) * 1000 / timeDelta >= MOVING_SPEED) {
+        movingTime += timeDelta;
+      }
+    }
+
+    kilometerSplits.update(lastTime, lastDistance, time, distance, firstTime);
+    mileSplits.update(lastTime, lastDistance, time, distance, firstTime);
+
+    timeWindow.add(time, distance);
+    while (timeWindow.size() > 1 && time - timeWindow.getTime(1) >= PACE_TIME_WINDOW) {
+      timeWindow.removeOldest();
+    }
+    distanceWindow.add(time, distance);
+    while (distanceWindow.size() > 1 && distance - distanceWindow.getDistance(1) >= PACE_DISTANCE_WINDOW) {
+      distanceWindow.removeOldest();
+    }
+
+    lastTime = time;
+    lastDistance = distance;
+  }
+
+  public synchronized void copyTo(Snapshot snapshot) {
+    snapshot.elapsedTime = hasLastFix ? lastTime - firstTime : 0;
+    snapshot.movingTime = movingTime;
+    snapshot.distance = lastDistance;
+    snapshot.averageSpeed = snapshot.elapsedTime > 0 ? lastDistance * 1000 / snapshot.elapsedTime : 0;
+    snapshot.averageMovingSpeed = movingTime > 0 ? lastDistance * 1000 / movingTime : 0;
+    snapshot.timeWindowPace = timeWindow.getPace();
+    snapshot.distanceWindowPace = distanceWindow.getPace();
+    snapshot.kilometerSplits = kilometerSplits.getCount();
+    snapshot.lastKilometerSplit = kilometerSplits.getLast();
+    snapshot.mileSplits = mileSplits.getCount();
+    snapshot.lastMileSplit = mileSplits.getLast();
+  }
+
+  // Times the engine over an hour long run at a steady speed, at 1 and 10 fixes per second, and checks the statistics
+  // against the ones worked out by hand. Logs the cost of an update and returns false if any statistic is off by more
+  // than a percent.
+  public static boolean benchmark() {
+    boolean passed = true;
+    int[] rates = new int[] { 1, 10 };
+    for (int rate : rates) {
+      RunStatistics statistics = new RunStatistics();
+      int fixes = 60 * 60 * rate;
+      long interval = 1000 / rate;
+      double speed = 3;  // In meters per second.
+
+      long timeBegin = System.nanoTime();
+      for (int i = 0; i < fixes; ++i) {
+        statistics.update(i * interval, i * interval * speed / 1000);
+      }
+      long timeEnd = System.nanoTime();
+
+      Snapshot snapshot = new Snapshot();
+      statistics.copyTo(snapshot);
+      double pace = METERS_PER_KILOMETER / speed;  // In seconds per kilometer.
+      boolean close = isClose(snapshot.averageSpeed, speed) && isClose(snapshot.averageMovingSpeed, speed)
+          && isClose(snapshot.timeWindowPace, pace) && isClose(snapshot.distanceWindowPace, pace)
+          && isClose(snapshot.lastKilometerSplit, pace * 1000) && isClose(snapshot.lastMileSplit, METERS_PER_MILE / speed * 1000)
+          && snapshot.kilometerSplits == (int) (snapshot.distance / METERS_PER_KILOMETER)
+          && snapshot.mileSplits == (int) (snapshot.distance / METERS_PER_MILE);
+      passed = passed && close;
+
+      Settings.printLogMessage(RunStatistics.class.getCanonicalName(), (close ? "" : "FAILED: ") + fixes + " fixes at " + rate
+          + " per second: " + ((timeEnd - timeBegin) / fixes) + " nanos per update, average speed " + snapshot.averageSpeed
+          + " meters per second, pace " + snapshot.timeWindowPace + " seconds per kilometer, " + snapshot.kilometerSplits + " splits.");
+    }
+    return passed;
+  }
+
+  private static boolean isClose(double value, double expected) {
+    return Math.abs(value - expected) <= 0.01 * Math.abs(expected);
+  }
+
+  // A ring buffer of fix times and run distances.
+  private static class TimeDistanceWindow {
+    private long[] times;
+    private double[] distances;
+    private int head = 0;
+    private int size = 0;
+
+    public TimeDistanceWindow(int capacity) {
+      times = new long[capacity];
+      distances = new double[capacity];
+    }
+
+    public void add(long time, double distance) {
+      if (size == times.length) {
+        removeOldest();
+      }
+      int index = (head + size) % times.length;
+      times[index] = time;
+      distances[index] = distance;
+      ++size;
+    }
+
+    public void removeOldest() {
+      head = (head + 1) % times.length;
+      --size;
+    }
+
+    public void clear() {
+      head = 0;
+      size = 0;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    // Time of the i-th oldest entry.
+    public long getTime(int i) {
+      return times[(head + i) % times.length];
+    }
+
+    public double getDistance(int i) {
+      return distances[(head + i) % distances.length];
+    }
+
+    // Pace between the oldest and newest entries, in seconds per kilometer.
+    public double getPace() {
+      if (size < 2) {
+        return 0;
+      }
+      double distance = getDistance(size - 1) - getDistance(0);
+      long time = getTime(size - 1) - getTime(0);
+      return distance > 0 ? (time / 1000.0) / (distance / METERS_PER_KILOMETER) : 0;
+    }
+  }
+
+  // Times at which each whole unit of distance was reached, interpolated between fixes.
+  private static class Splits {
+    private double unit;
+    private int count = 0;
+    private long lastSplitTime;  // Time the last whole unit was reached.
+    private long last = 0;  // Time taken for the last whole unit.
+
+    public Splits(double unit) {
+      this.unit = unit;
+    }
+
+    public void clear() {
+      count = 0;
+      last = 0;
+    }
+
+    public void update(long lastTime, double lastDistance, long time, double distance, long firstTime) {
+      if (count == 0 && last == 0) {
+        lastSplitTime = firstTime;
+      }
+      while (distance >= (count + 1) * unit && distance > lastDistance) {
+        double boundary = (count + 1) * unit;
+        long splitTime = lastTime + (long) ((time - lastTime) * (boundary - lastDistance) / (distance - lastDistance));
+        last = splitTime - lastSplitTime;
+        lastSplitTime = splitTime;
+        ++count;
+      }
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public long getLast() {
+      return last;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+// Facts about a run worked out from its track, stored in the run_summaries table so they can be looked up without
+// reading the coordinates back. Summaries are built up one batch of coordinates at a time as the run is saved; the
+// last point is kept so the next batch carries on from where the previous one stopped.
+public class RunSummary {
+  private long runId;
+  private long pointCount;
+  // Bounding box of the track, in degrees. Meaningless while there are no points.
+  private double minLatitude;
+  private double maxLatitude;
+  private double minLongitude;
+  private double maxLongitude;
+  // In meters.
+  private double elevationGain;
+  private double elevationLoss;
+  // Fastest speed between two consecutive points of the track, in meters per second.
+  private double maxSpeed;
+  // The last point added.
+  private double lastLatitude;
+  private double lastLongitude;
+  private double lastElevation;
+  private long lastTimeElapsed;
+  // Whether the run has been stopped, and so no more points will be added.
+  private boolean finished;
+
+  public RunSummary(long runId) {
+    this.runId = runId;
+  }
+
+  public RunSummary(long runId, long pointCount, double minLatitude, double maxLatitude, double minLongitude, double maxLongitude,
+      double elevationGain, double elevationLoss, double maxSpeed, double lastLatitude, double lastLongitude, double lastElevation,
+      long lastTimeElapsed, boolean finished) {
+    this.runId = runId;
+    this.pointCount = pointCount;
+    this.minLatitude = minLatitude;
+    this.maxLatitude = maxLatitude;
+    this.minLongitude = minLongitude;
+    this.maxLongitude = maxLongitude;
+    this.elevationGain = elevationGain;
+    this.elevationLoss = elevationLoss;
+    this.maxSpeed = maxSpeed;
+    this.lastLatitude = lastLatitude;
+    this.lastLongitude = lastLongitude;
+    this.lastElevation = lastElevation;
+    this.lastTimeElapsed = lastTimeElapsed;
+    this.finished = finished;
+  }
+
+  // Adds the coordinates in [from, to) to the summary. They must follow on from the points already added.
+  public void add(CoordinateBuffer coordinates, int from, int to) {
+    for (int i = from; i < to; ++i) {
+      double latitude = coordinates.getLatitude(i);
+      double longitude = coordinates.getLongitude(i);
+      double elevation = coordinates.getElevation(i);
+      long timeElapsed = coordinates.getTimeElapsed(i);
+
+      if (pointCount == 0) {
+        minLatitude = maxLatitude = latitude;
+        minLongitude = maxLongitude = longitude;
+      } else {
+        minLatitude = Math.min(minLatitude, latitude);
+        maxLatitude = Math.max(maxLatitude, latitude);
+        minLongitude = Math.min(minLongitude, longitude);
+        maxLongitude = Math.max(maxLongitude, longitude);
+
+        double climb = elevation - lastElevation;
+        if (climb > 0) {
+          elevationGain += climb;
+        } else {
+          elevationLoss -= climb;
+        }
+
+        long time = timeElapsed - lastTimeElapsed;
+        if (time > 0) {
+          double speed = GeoMath.distance(lastLatitude, lastLongitude, latitude, longitude) * 1000 / time;
+          maxSpeed = Math.max(maxSpeed, speed);
+        }
+      }
+
+      ++pointCount;
+      lastLatitude = latitude;
+      lastLongitude = longitude;
+      lastElevation = elevation;
+      lastTimeElapsed = timeElapsed;
+    }
+  }
+
+  public long getRunId() {
+    return runId;
+  }
+
+  public long getPointCount() {
+    return pointCount;
+  }
+
+  public double getMinLatitude() {
+    return minLatitude;
+  }
+
+  public double getMaxLatitude() {
+    return maxLatitude;
+  }
+
+  public double getMinLongitude() {
+    return minLongitude;
+  }
+
+  public double getMaxLongitude() {
+    return maxLongitude;
+  }
+
+  public double getElevationGain() {
+    return elevationGain;
+  }
+
+  public double getElevationLoss() {
+    return elevationLoss;
+  }
+
+  public double getMaxSpeed() {
+    return maxSpeed;
+  }
+
+  public double getLastLatitude() {
+    return lastLatitude;
+  }
+
+  public double getLastLongitude() {
+    return lastLongitude;
+  }
+
+  public double getLastElevation() {
+    return lastElevation;
+  }
+
+  public long getLastTimeElapsed() {
+    return lastTimeElapsed;
+  }
+
+  public void setFinished(boolean finished) {
+    this.finished = finished;
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+}
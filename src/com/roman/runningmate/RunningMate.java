@@ -83,6 +83,15 @@ public class RunningMate extends Activity {
       }
     });
 
+    Button historyButton = (Button) this.findViewById(R.id.history_button);
+    historyButton.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View view) {
+        Intent intent = new Intent(view.getContext(), BrowseRuns.class);
+        startActivity(intent);
+      }
+    });
+
     Button exitButton = (Button) this.findViewById(R.id.exit_button);
     exitButton.setOnClickListener(new View.OnClickListener() {
       @Override
@@ -0,0 +1,151 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+
+// Writes a batch of runs straight from the database into the request body, as the form encoded "runs" parameter
+// expected by the data service. Only one chunk of coordinates is held in memory at a time, however large the runs.
+public class RunsJsonProducer implements ContentProducer {
+  private DataHelper dataHelper;
+  private List<Run> runs;
+
+  public RunsJsonProducer(DataHelper dataHelper, List<Run> runs) {
+    this.dataHelper = dataHelper;
+    this.runs = runs;
+  }
+
+  // Returns a chunked request entity which serializes the runs as it is being sent.
+  public HttpEntity createEntity() {
+    EntityTemplate entity = new EntityTemplate(this);
+    entity.setContentType("application/x-www-form-urlencoded");
+    entity.setChunked(true);
+    return entity;
+  }
+
+  @Override
+  public void writeTo(OutputStream outputStream) throws IOException {
+    long timeBegin = System.currentTimeMillis();
+    long coordinateCount = 0;
+
+    outputStream.write("runs=".getBytes("US-ASCII"));
+    Writer json = new BufferedWriter(new OutputStreamWriter(new FormEncodingOutputStream(outputStream), "UTF-8"));
+    json.write("{\"runs\":[");
+
+    for (Run run : runs) {
+      if (runs.get(0) != run)
+        json.write(",");
+
+      json.write("{\"time_start\":\"");
+      json.write(Long.toString(run.getTimeStart()));
+
+      json.write("\",\"time_end\":\"");
+      json.write(Long.toString(run.getTimeEnd()));
+
+      json.write("\",\"distance\":\"");
+      json.write(Double.toString(run.getDistance()));
+
+      json.write("\",\"coordinates\":[");
+      CoordinateReader coordinates = dataHelper.readCoordinates(run.getRunId());
+      try {
+        boolean first = true;
+        while (coordinates.moveToNext()) {
+          if (!first)
+            json.write(",");
+          first = false;
+
+          json.write("{\"latitude\":\"");
+          json.write(Double.toString(coordinates.getLatitude()));
+
+          json.write("\",\"longitude\":\"");
+          json.write(Double.toString(coordinates.getLongitude()));
+
+          json.write("\",\"elevation\":\"");
+          json.write(Double.toString(coordinates.getElevation()));
+
+          json.write("\",\"time_elapsed\":\"");
+          json.write(Long.toString(coordinates.getTimeElapsed()));
+          json.write("\"}");
+          ++coordinateCount;
+        }
+      } finally {
+        coordinates.close();
+      }
+
+      json.write("]}");
+    }
+    json.write("]}");
+    json.flush();
+
+    long timeEnd = System.currentTimeMillis();
+    Settings.printLogMessage(getClass().getCanonicalName(), "Streamed " + coordinateCount + " coordinates in " + (timeEnd - timeBegin) + " millis.");
+  }
+
+  // Applies application/x-www-form-urlencoded escaping to the bytes written through it.
+  private static class FormEncodingOutputStream extends FilterOutputStream {
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    public FormEncodingOutputStream(OutputStream outputStream) {
+      super(outputStream);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '*' || b == '_') {
+        out.write(b);
+      } else if (b == ' ') {
+        out.write('+');
+      } else {
+        out.write('%');
+        out.write(HEX_DIGITS[(b >> 4) & 0x0F]);
+        out.write(HEX_DIGITS[b & 0x0F]);
+      }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      for (int i = offset; i < offset + length; ++i) {
+        write(buffer[i]);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      // The underlying stream belongs to the HTTP connection.
+      flush();
+    }
+  }
+}
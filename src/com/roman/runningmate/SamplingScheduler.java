@@ -0,0 +1,187 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+// Picks how often to ask for GPS fixes, and how far apart they must be, from the way the runner is moving.
+// Fixes are spaced roughly evenly along the route: further apart on straight stretches, closer together through turns.
+// When the runner stands still fixes are requested as rarely as allowed, with a minimum distance so that GPS drift
+// doesn't produce any. Intervals are rounded to a few fixed steps, so updates are only re-requested when the way
+// the runner moves really changes, and fixes with poor accuracy don't change anything.
+public class SamplingScheduler {
+  private static final long[] INTERVAL_STEPS = new long[] { 1000, 2000, 3000, 5000, 10000, 15000, 30000, 60000 };
+
+  private static final double STATIONARY_SPEED = 0.5;  // In meters per second.
+  private static final float STATIONARY_MIN_DISTANCE = 10;  // In meters.
+  private static final double STRAIGHT_SPACING = 20;  // Distance between fixes on straight stretches, in meters.
+  private static final double TURN_SPACING = 8;  // Distance between fixes through turns, in meters.
+  private static final double TURN_ANGLE = Math.PI / 6;  // Heading change treated as a turn, in radians.
+  private static final double POOR_ACCURACY = 30;  // In meters.
+  private static final double SPEED_SMOOTHING = 0.5;  // Weight of the newest speed measurement.
+
+  private long minInterval;
+  private long maxInterval;
+
+  private long interval;
+  private float minDistance = 0;
+
+  private boolean hasLastFix = false;
+  private double lastLatitude;
+  private double lastLongitude;
+  private long lastTime;
+  private boolean hasHeading = false;
+  private double lastHeading;
+  private double speed = 0;
+
+  // For reporting how many fixes were saved compared to always sampling at the minimum interval.
+  private long fixCount = 0;
+  private long firstFixTime = 0;
+
+  public SamplingScheduler(long minInterval, long maxInterval) {
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+    reset();
+  }
+
+  // Starts over for a new run, at the minimum interval.
+  public void reset() {
+    interval = minInterval;
+    minDistance = 0;
+    hasLastFix = false;
+    hasHeading = false;
+    speed = 0;
+    fixCount = 0;
+  }
+
+  public long getInterval() {
+    return interval;
+  }
+
+  public float getMinDistance() {
+    return minDistance;
+  }
+
+  // Takes a new fix, with its time in milliseconds and its accuracy in meters (0 if unknown). Returns true if the
+  // interval or minimum distance changed, meaning location updates should be requested again.
+  public boolean onFix(double latitude, double longitude, long time, float accuracy) {
+    ++fixCount;
+    if (!hasLastFix) {
+      hasLastFix = true;
+      firstFixTime = time;
+      setLastFix(latitude, longitude, time);
+      return false;
+    }
+    if (accuracy > POOR_ACCURACY || time <= lastTime) {
+      return false;
+    }
+
+    double distance = GeoMath.distance(lastLatitude, lastLongitude, latitude, longitude);
+    speed = SPEED_SMOOTHING * (distance * 1000 / (time - lastTime)) + (1 - SPEED_SMOOTHING) * speed;
+
+    boolean turning = false;
+    if (distance > accuracy) {
+      // Heading on a local flat projection, good enough to spot turns.
+      double heading = Math.atan2(latitude - lastLatitude, (longitude - lastLongitude) * Math.cos(GeoMath.toRadians(latitude)));
+      if (hasHeading) {
+        double change = Math.abs(heading - lastHeading);
+        turning = Math.min(change, 2 * Math.PI - change) > TURN_ANGLE;
+      }
+      hasHeading = true;
+      lastHeading = heading;
+    }
+    setLastFix(latitude, longitude, time);
+
+    long newInterval;
+    float newMinDistance;
+    if (speed < STATIONARY_SPEED) {
+      newInterval = maxInterval;
+      newMinDistance = STATIONARY_MIN_DISTANCE;
+    } else {
+      newInterval = roundInterval((long) ((turning ? TURN_SPACING : STRAIGHT_SPACING) / speed * 1000));
+      newMinDistance = 0;
+    }
+
+    boolean changed = newInterval != interval || newMinDistance != minDistance;
+    interval = newInterval;
+    minDistance = newMinDistance;
+    return changed;
+  }
+
+  private void setLastFix(double latitude, double longitude, long time) {
+    lastLatitude = latitude;
+    lastLongitude = longitude;
+    lastTime = time;
+  }
+
+  // Rounds down to one of the interval steps, within the configured bounds.
+  private long roundInterval(long desiredInterval) {
+    long rounded = minInterval;
+    for (long step : INTERVAL_STEPS) {
+      if (step <= desiredInterval) {
+        rounded = step;
+      }
+    }
+    return Math.max(minInterval, Math.min(maxInterval, rounded));
+  }
+
+  public long getFixCount() {
+    return fixCount;
+  }
+
+  // Number of fixes that sampling at the minimum interval would have produced over the same time.
+  public long getBaselineFixCount() {
+    return hasLastFix ? (lastTime - firstFixTime) / minInterval + 1 : 0;
+  }
+
+  // Replays a densely sampled track as if its fixes had been requested by the scheduler, keeping only the fixes that
+  // would have been delivered, and logs how many were saved and how much distance was lost. Returns false if more
+  // fixes were kept than the track has, or if the sampled track came out more than 5% short.
+  public boolean replay(CoordinateBuffer track) {
+    reset();
+    if (track.size() < 2) {
+      return true;
+    }
+
+    double sampledDistance = 0;
+    int lastKept = 0;
+    onFix(track.getLatitude(0), track.getLongitude(0), track.getTimeElapsed(0), 0);
+    for (int i = 1; i < track.size(); ++i) {
+      long timeSinceKept = track.getTimeElapsed(i) - track.getTimeElapsed(lastKept);
+      double distanceSinceKept = GeoMath.distance(track.getLatitude(lastKept), track.getLongitude(lastKept), track.getLatitude(i), track.getLongitude(i));
+      if (timeSinceKept >= interval && distanceSinceKept >= minDistance) {
+        sampledDistance += distanceSinceKept;
+        lastKept = i;
+        onFix(track.getLatitude(i), track.getLongitude(i), track.getTimeElapsed(i), 0);
+      }
+    }
+
+    double fullDistance = GeoMath.distance(track);
+    boolean passed = fixCount <= track.size() && sampledDistance >= 0.95 * fullDistance;
+    Settings.printLogMessage(getClass().getCanonicalName(), (passed ? "" : "FAILED: ") + "Replayed " + track.size() + " fixes: kept "
+        + fixCount + ", distance " + sampledDistance + " meters instead of " + fullDistance + " meters ("
+        + (100 * (fullDistance - sampledDistance) / fullDistance) + "% short).");
+    return passed;
+  }
+}
@@ -30,11 +30,56 @@ import android.util.Log;
 public class Settings {
   private static final boolean DEBUG = false;
   private static final String LOG_TAG = "RunningMate";
+  // Can be pointed at a local development server.
+  private static final String SERVER_URL = "http://running-mate.appspot.com";
+  private static final int CONNECT_TIMEOUT = 15000;  // In milliseconds.
+  private static final int SOCKET_TIMEOUT = 60000;  // In milliseconds.
+  // Bounds on how often GPS fixes are requested while tracking a run, in milliseconds.
+  private static final long MIN_SAMPLING_INTERVAL = 1000;
+  private static final long MAX_SAMPLING_INTERVAL = 30000;
+  // Furthest a stored point may be from the fix it replaces when simplifying tracks, in meters.
+  private static final double SIMPLIFICATION_TOLERANCE = 3;
+  // Track replayed in place of the GPS in debug builds, in the app's files directory, and the speed to replay it at as
+  // a multiple of the speed it was recorded at. A speed of 0 replays it as fast as it can be processed.
+  private static final String REPLAY_FILE = "replay.csv";
+  private static final double REPLAY_SPEED = 1;
 
   public static boolean getDebug() {
     return DEBUG;
   }
 
+  public static String getServerUrl() {
+    return SERVER_URL;
+  }
+
+  public static int getConnectTimeout() {
+    return CONNECT_TIMEOUT;
+  }
+
+  public static int getSocketTimeout() {
+    return SOCKET_TIMEOUT;
+  }
+
+  public static long getMinSamplingInterval() {
+    return MIN_SAMPLING_INTERVAL;
+  }
+
+  public static long getMaxSamplingInterval() {
+    return MAX_SAMPLING_INTERVAL;
+  }
+
+  public static double getSimplificationTolerance() {
+    return SIMPLIFICATION_TOLERANCE;
+  }
+
+  public static String getReplayFile() {
+    return REPLAY_FILE;
+  }
+
+  public static double getReplaySpeed() {
+    return REPLAY_SPEED;
+  }
+
   public static String getLogTag() {
     return LOG_TAG;
   }
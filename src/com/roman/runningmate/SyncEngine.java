@@ -0,0 +1,232 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+
+// Uploads unsynced runs in batches bounded by a number of runs and coordinates. Every run in a batch the server
+// acknowledges is marked as synced locally, so an interrupted sync picks up with the first unacknowledged batch.
+// A single run is never split across batches, so a run larger than the coordinate budget is sent in a batch of its own.
+public class SyncEngine {
+  public static final int DEFAULT_MAX_BATCH_RUNS = 20;
+  public static final int DEFAULT_MAX_BATCH_COORDINATES = 20000;
+
+  // The calls the engine makes to the data service. Implemented over HTTP by Synchronize, and easy to stand in for.
+  public interface Transport {
+    // Returns the start time of the latest run the server has, or a negative value if it doesn't know.
+    long getLastSyncedRunTime() throws IOException;
+
+    // Returns whether the server accepts uploads in the compact columnar format.
+    boolean acceptsColumnarUpload() throws IOException;
+
+    // Uploads a batch of runs, returning the server response if it was acknowledged or null otherwise.
+    String upload(HttpEntity entity) throws IOException;
+  }
+
+  private DataHelper dataHelper;
+  private Transport transport;
+  private int maxBatchRuns;
+  private int maxBatchCoordinates;
+
+  public SyncEngine(DataHelper dataHelper, Transport transport) {
+    this(dataHelper, transport, DEFAULT_MAX_BATCH_RUNS, DEFAULT_MAX_BATCH_COORDINATES);
+  }
+
+  public SyncEngine(DataHelper dataHelper, Transport transport, int maxBatchRuns, int maxBatchCoordinates) {
+    this.dataHelper = dataHelper;
+    this.transport = transport;
+    this.maxBatchRuns = maxBatchRuns;
+    this.maxBatchCoordinates = maxBatchCoordinates;
+  }
+
+  // Uploads every finished run not yet synced, leaving out the run being tracked. Returns a summary for the user.
+  public String sync(long activeRunId) throws IOException {
+    long lastSyncedRunStartTime = transport.getLastSyncedRunTime();
+    Settings.printLogMessage(getClass().getCanonicalName(), "Last synced run time: " + lastSyncedRunStartTime);
+    // If we had an error getting the last synced run from the cloud, we use the largest possible value
+    // so that we don't re-insert any existing runs by accident.
+    if (lastSyncedRunStartTime < 0) {
+      lastSyncedRunStartTime = Long.MAX_VALUE;
+    }
+
+    boolean columnar = transport.acceptsColumnarUpload();
+    Settings.printLogMessage(getClass().getCanonicalName(), "Uploading in " + (columnar ? "columnar" : "form encoded") + " format.");
+
+    List<Run> runs = dataHelper.getRunsToSync(lastSyncedRunStartTime, activeRunId);
+    StringBuilder summary = new StringBuilder();
+    int runsSynced = 0;
+    int batches = 0;
+
+    int next = 0;
+    while (next < runs.size()) {
+      List<Run> batch = new ArrayList<Run>();
+      long batchCoordinates = 0;
+      while (next < runs.size() && batch.size() < maxBatchRuns) {
+        Run run = runs.get(next);
+        long coordinates = dataHelper.getCoordinateCount(run.getRunId());
+        if (batch.size() > 0 && batchCoordinates + coordinates > maxBatchCoordinates) {
+          break;
+        }
+        batch.add(run);
+        batchCoordinates += coordinates;
+        ++next;
+      }
+
+      if (Settings.getDebug()) {
+        benchmarkFormats(batch);
+      }
+
+      long timeBegin = System.currentTimeMillis();
+      HttpEntity entity;
+      if (columnar) {
+        entity = new ColumnarRunsProducer(dataHelper, batch).createEntity();
+      } else {
+        entity = new RunsJsonProducer(dataHelper, batch).createEntity();
+      }
+      String response = transport.upload(entity);
+      long timeEnd = System.currentTimeMillis();
+      if (response == null) {
+        summary.append("Upload interrupted, it will resume from here next time.\n");
+        break;
+      }
+
+      // Checkpoint the acknowledged batch.
+      for (Run run : batch) {
+        dataHelper.markRunSynced(run.getRunId(), timeEnd);
+      }
+      runsSynced += batch.size();
+      ++batches;
+      Settings.printLogMessage(getClass().getCanonicalName(), "Uploaded batch of " + batch.size() + " runs and " + batchCoordinates
+          + " coordinates in " + (timeEnd - timeBegin) + " millis.");
+      summary.append(response);
+    }
+
+    summary.append("Synchronized " + runsSynced + " of " + runs.size() + " runs in " + batches + " batches.\n");
+    return summary.toString();
+  }
+
+  // Logs the bytes each upload format would put on the wire for the batch, and the time taken to serialize it.
+  private void benchmarkFormats(List<Run> batch) throws IOException {
+    ContentProducer[] producers = new ContentProducer[] { new RunsJsonProducer(dataHelper, batch), new ColumnarRunsProducer(dataHelper, batch) };
+    for (ContentProducer producer : producers) {
+      CountingOutputStream outputStream = new CountingOutputStream();
+      long timeBegin = System.nanoTime();
+      producer.writeTo(outputStream);
+      long timeEnd = System.nanoTime();
+      Settings.printLogMessage(getClass().getCanonicalName(), producer.getClass().getSimpleName() + ": " + outputStream.getCount()
+          + " bytes in " + ((timeEnd - timeBegin) / 1000) + " micros.");
+    }
+  }
+
+  // Seeds about a million coordinates and syncs them in each upload format through a transport that only counts the
+  // bytes, checking how much the heap grows while the batches are uploaded. Each pass runs in a transaction that is
+  // rolled back, so the database is left untouched. Logs the results and returns false if the heap grew by more than
+  // the bound, which would mean a batch is being held in memory rather than streamed.
+  public static boolean benchmarkMemory(DataHelper dataHelper) throws IOException {
+    final int runCount = 100;
+    final int pointCount = 10000;
+    final long maxHeapGrowth = 4 * 1024 * 1024;  // In bytes.
+    // Later than every stored run, so only the seeded runs are synced.
+    final long firstTimeStart = System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000;
+
+    boolean passed = true;
+    boolean[] formats = new boolean[] { false, true };
+    for (final boolean columnar : formats) {
+      dataHelper.beginRolledBackTransaction();
+      try {
+        dataHelper.seedSyntheticRuns(runCount, pointCount, firstTimeStart, 1);
+        final long memoryAtStart = getUsedMemory();
+        final long[] maxMemory = new long[] { memoryAtStart };
+        final CountingOutputStream outputStream = new CountingOutputStream();
+
+        Transport transport = new Transport() {
+          @Override
+          public long getLastSyncedRunTime() {
+            return firstTimeStart - 1;
+          }
+
+          @Override
+          public boolean acceptsColumnarUpload() {
+            return columnar;
+          }
+
+          @Override
+          public String upload(HttpEntity entity) throws IOException {
+            entity.writeTo(outputStream);
+            maxMemory[0] = Math.max(maxMemory[0], getUsedMemory());
+            return "";
+          }
+        };
+
+        long timeBegin = System.nanoTime();
+        new SyncEngine(dataHelper, transport).sync(-1);
+        long timeEnd = System.nanoTime();
+
+        long heapGrowth = maxMemory[0] - memoryAtStart;
+        boolean bounded = heapGrowth <= maxHeapGrowth;
+        passed = passed && bounded;
+        Settings.printLogMessage(SyncEngine.class.getCanonicalName(), (bounded ? "" : "FAILED: ") + "Synced " + runCount * pointCount
+            + " coordinates in the " + (columnar ? "columnar" : "form encoded") + " format, " + outputStream.getCount() + " bytes in "
+            + ((timeEnd - timeBegin) / 1000000) + " ms, heap grew by at most " + (heapGrowth / 1024) + " KB.");
+      } finally {
+        dataHelper.endRolledBackTransaction();
+      }
+    }
+    return passed;
+  }
+
+  // Heap in use once garbage has been collected, so that only what is still referenced counts.
+  private static long getUsedMemory() {
+    System.gc();
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  // Discards everything written to it, keeping count of the bytes.
+  private static class CountingOutputStream extends OutputStream {
+    private long count = 0;
+
+    @Override
+    public void write(int b) {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+      count += length;
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+}
@@ -25,23 +25,16 @@
 
 package com.roman.runningmate;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.List;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -60,7 +53,6 @@ import android.widget.TextView;
 // Note: Much of the authentication code originally comes from Nick Johnson's blog post at
 // http://blog.notdot.net/2010/05/Authenticating-against-App-Engine-from-an-Android-app
 public class Synchronize extends Activity {
-  private DefaultHttpClient httpClient;
   private TextView textView;
   private String serverResponseStr;
 
@@ -70,8 +62,6 @@ public class Synchronize extends Activity {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.synchronize);
 
-    httpClient = new DefaultHttpClient();
-
     textView = (TextView) findViewById(R.id.scroll_view);
 
     if (savedInstanceState == null) {
@@ -187,19 +177,21 @@ public class Synchronize extends Activity {
   private class GetCookieTask extends AsyncTask<String, Void, Boolean> {
     protected Boolean doInBackground(String... tokens) {
       try {
-        // Don't follow redirects.
-        httpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
-
-        String url = "http://running-mate.appspot.com/_ah/login?continue=" + URLEncoder.encode("http://localhost/") + "&auth=" + URLEncoder.encode(tokens[0]);
+        String url = Settings.getServerUrl() + "/_ah/login?continue=" + URLEncoder.encode("http://localhost/") + "&auth=" + URLEncoder.encode(tokens[0]);
         HttpGet httpGet = new HttpGet(url);
+        // Don't follow redirects.
+        HttpClientParams.setRedirecting(httpGet.getParams(), false);
 
-        HttpResponse response = httpClient.execute(httpGet);
+        HttpResponse response = NetworkClient.execute(Synchronize.this, httpGet);
+        if (response.getEntity() != null) {
+          response.getEntity().consumeContent();
+        }
         if (response.getStatusLine().getStatusCode() != 302) {
           // Response should be a redirect.
           return false;
         }
 
-        for (Cookie cookie : httpClient.getCookieStore().getCookies()) {
+        for (Cookie cookie : NetworkClient.getHttpClient(Synchronize.this).getCookieStore().getCookies()) {
           if (cookie.getName().equals("ACSID"))
             return true;
         }
@@ -207,70 +199,87 @@ public class Synchronize extends Activity {
         Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
       } catch (IOException e) {
         Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
-      } finally {
-        httpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
       }
       return false;
     }
 
     protected void onPostExecute(Boolean result) {
-      new AuthenticatedRequestTask().execute("http://running-mate.appspot.com/data_service");
+      new AuthenticatedRequestTask().execute(Settings.getServerUrl() + "/data_service");
     }
   }
 
-  private class AuthenticatedRequestTask extends AsyncTask<String, Void, HttpResponse> {
+  // Talks to the data service over the authenticated HTTP client.
+  private class DataServiceTransport implements SyncEngine.Transport {
+    private String url;
+
+    public DataServiceTransport(String url) {
+      this.url = url;
+    }
+
     @Override
-    protected HttpResponse doInBackground(String... urls) {
+    public long getLastSyncedRunTime() throws IOException {
+      HttpGet httpGet = new HttpGet(url + "?request_type=get_last_synced_run_time");
+
+      // We only expect one line in the response.
+      String str = NetworkClient.readResponse(NetworkClient.execute(Synchronize.this, httpGet)).trim();
       try {
-        // Find the last synced run time.
-        long lastSyncedRunStartTime = Long.MAX_VALUE;
-        HttpGet httpGet = new HttpGet("http://running-mate.appspot.com/data_service?request_type=get_last_synced_run_time");
-        HttpResponse httpGetResult = httpClient.execute(httpGet);
-
-        // We only expect one line in the response.
-        BufferedReader in = new BufferedReader(new InputStreamReader(httpGetResult.getEntity().getContent()));
-        String str = in.readLine();
-        in.close();
-        Settings.printLogMessage(getClass().getCanonicalName(), "Last synced run time: " + str);
-        lastSyncedRunStartTime = Long.parseLong(str);
-        // If we had an error getting the last synced run from the cloud, we return the largest possible value
-        // so that we don't re-insert any existing runs by accident.
-        if (lastSyncedRunStartTime < 0) {
-          lastSyncedRunStartTime = Long.MAX_VALUE;
-        }
-//        textView.setText("Last Synced Run Time: " + str + "\n\n");  // TODO: Exception here...
+        return Long.parseLong(str);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
 
-        // Upload the runs.
-        HttpPost httpPost = new HttpPost(urls[0]);
+    @Override
+    public boolean acceptsColumnarUpload() throws IOException {
+      HttpGet httpGet = new HttpGet(url + "?request_type=get_upload_formats");
+      HttpResponse response = NetworkClient.execute(Synchronize.this, httpGet);
+      String formats = NetworkClient.readResponse(response);
+
+      // Servers that don't know about upload formats won't list it, and we fall back to the form encoded format.
+      if (response.getStatusLine().getStatusCode() != 200) {
+        return false;
+      }
+      for (String format : formats.split("\n")) {
+        if (format.trim().equals(ColumnarRunsProducer.FORMAT)) {
+          return true;
+        }
+      }
+      return false;
+    }
 
-        List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(2);
-        nameValuePairs.add(new BasicNameValuePair("runs", RunningMate.getLocationService().getRunsJson(lastSyncedRunStartTime)));
-        httpPost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
+    @Override
+    public String upload(HttpEntity entity) throws IOException {
+      HttpPost httpPost = new HttpPost(url);
+      httpPost.setEntity(entity);
+      HttpResponse response = NetworkClient.execute(Synchronize.this, httpPost);
+      String content = NetworkClient.readResponse(response);
 
-        return httpClient.execute(httpPost);
-      } catch (ClientProtocolException e) {
-        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
-      } catch (IOException e) {
-        Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+      if (response.getStatusLine().getStatusCode() != 200) {
+        Settings.printLogMessage(getClass().getCanonicalName(), "Upload failed: " + response.getStatusLine());
+        return null;
       }
-      return null;
+      return content;
     }
+  }
 
-    protected void onPostExecute(HttpResponse result) {
+  private class AuthenticatedRequestTask extends AsyncTask<String, Void, String> {
+    @Override
+    protected String doInBackground(String... urls) {
+      LocationService locationService = RunningMate.getLocationService();
+      SyncEngine syncEngine = new SyncEngine(locationService.getDataHelper(), new DataServiceTransport(urls[0]));
       try {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(result.getEntity().getContent()));
-        StringBuffer content = new StringBuffer();
-        String line = "";
-        while ((line = reader.readLine()) != null) {
-          content.append(line + '\n');
-        }
-        serverResponseStr = content.toString();
-        textView.setText(serverResponseStr);
-      } catch (IllegalStateException e) {
+        return syncEngine.sync(locationService.getRunId());
+      } catch (ClientProtocolException e) {
         Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
       } catch (IOException e) {
         Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
       }
+      return "Synchronization failed. Runs uploaded so far are saved, the rest will be uploaded next time.";
+    }
+
+    protected void onPostExecute(String result) {
+      serverResponseStr = result;
+      textView.setText(serverResponseStr);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,327 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.widget.ImageView;
+
+// Route thumbnails of stored runs. Thumbnails are drawn on a background thread from the run's track, simplified to the
+// thumbnail's resolution, and cached in two tiers, each evicting its least recently used thumbnails once it goes over
+// its size. Every thumbnail drawn is saved to disk, named by the run id and the time the run was last changed, so it
+// is only drawn again if the run changes. The disk tier goes by the files' modification times, which are updated
+// whenever a file is read.
+//
+// Thumbnails are requested from the main thread, see load(). Requests for rows that were scrolled away before their
+// turn came are dropped.
+public class ThumbnailCache {
+  private static final double METERS_PER_DEGREE = GeoMath.EARTH_RADIUS * Math.PI / 180;
+  // Number of points read from the database at a time.
+  private static final int READ_SIZE = 1024;
+
+  private final DataHelper dataHelper;
+  private final File directory;
+  private final int size;  // In pixels.
+  private final int maxMemory;  // In bytes.
+  private final long maxDisk;  // In bytes.
+
+  private final HandlerThread thread;
+  private final Handler handler;
+  private final Handler mainHandler = new Handler();
+
+  // Only used on the main thread. In order of access, least recent first.
+  private final LinkedHashMap<String, Bitmap> memoryCache = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+  private int memoryUsed = 0;
+  // The view waiting for each thumbnail being loaded. Rows that are scrolled away drop out, which cancels the load.
+  private final Map<String, ImageView> pending = new ConcurrentHashMap<String, ImageView>();
+  private final Map<ImageView, String> requested = new HashMap<ImageView, String>();
+
+  // Only used on the background thread.
+  private final Paint paint = new Paint();
+  private final Path path = new Path();
+  private final CoordinateBuffer points = new CoordinateBuffer(READ_SIZE);
+  private final CoordinateBuffer simplified = new CoordinateBuffer(READ_SIZE);
+  // Bytes taken by the files in the directory, or -1 until they have been counted.
+  private long diskUsed = -1;
+
+  public ThumbnailCache(Context context, DataHelper dataHelper, int size, int maxMemory, long maxDisk) {
+    this.dataHelper = dataHelper;
+    this.directory = new File(context.getCacheDir(), "thumbnails");
+    this.size = size;
+    this.maxMemory = maxMemory;
+    this.maxDisk = maxDisk;
+
+    thread = new HandlerThread("ThumbnailThread", Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+
+    paint.setAntiAlias(true);
+    paint.setColor(Color.BLUE);
+    paint.setStyle(Paint.Style.STROKE);
+    paint.setStrokeJoin(Paint.Join.ROUND);
+    paint.setStrokeCap(Paint.Cap.ROUND);
+    paint.setStrokeWidth(2);
+  }
+
+  // Shows the thumbnail of the run in the view, loading it in the background if it isn't in memory. The last modified
+  // time is the run's end time, which moves on whenever coordinates are added to it.
+  public void load(long runId, long lastModified, ImageView view) {
+    final String key = runId + "_" + lastModified;
+    String previousKey = requested.put(view, key);
+    if (previousKey != null && !previousKey.equals(key)) {
+      pending.remove(previousKey);
+    }
+
+    Bitmap bitmap = memoryCache.get(key);
+    view.setImageBitmap(bitmap);
+    if (bitmap != null) {
+      requested.remove(view);
+      return;
+    }
+
+    if (pending.put(key, view) == null) {
+      final long thumbnailRunId = runId;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (!pending.containsKey(key)) {
+            return;
+          }
+          final Bitmap loaded = loadThumbnail(thumbnailRunId, key);
+          mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              if (loaded != null) {
+                put(key, loaded);
+              }
+              ImageView view = pending.remove(key);
+              if (view != null && key.equals(requested.get(view))) {
+                requested.remove(view);
+                view.setImageBitmap(loaded);
+              }
+            }
+          });
+        }
+      });
+    }
+  }
+
+  // Stops the background thread. Thumbnails being loaded are dropped.
+  public void close() {
+    pending.clear();
+    thread.quit();
+  }
+
+  // Adds a bitmap to the memory cache, evicting the least recently used ones to keep it under its size.
+  private void put(String key, Bitmap bitmap) {
+    Bitmap replaced = memoryCache.put(key, bitmap);
+    if (replaced != null) {
+      memoryUsed -= getByteCount(replaced);
+    }
+    memoryUsed += getByteCount(bitmap);
+
+    Iterator<Bitmap> iterator = memoryCache.values().iterator();
+    while (memoryUsed > maxMemory && iterator.hasNext()) {
+      Bitmap evicted = iterator.next();
+      if (evicted == bitmap) {
+        break;
+      }
+      memoryUsed -= getByteCount(evicted);
+      iterator.remove();
+    }
+  }
+
+  private static int getByteCount(Bitmap bitmap) {
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  // Reads the thumbnail from disk, or draws and saves it. Returns null if the run can't be drawn yet, see
+  // drawThumbnail(). Called on the background thread.
+  private Bitmap loadThumbnail(final long runId, String key) {
+    File file = new File(directory, key + ".png");
+    if (file.exists()) {
+      Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+      if (bitmap != null) {
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+      }
+    }
+
+    long timeBegin = System.nanoTime();
+    Bitmap bitmap = drawThumbnail(runId);
+    long timeDrawn = System.nanoTime();
+    if (bitmap == null) {
+      return null;
+    }
+
+    // Thumbnails of earlier versions of the run won't be asked for again.
+    directory.mkdirs();
+    File[] stale = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(runId + "_");
+      }
+    });
+    if (diskUsed == -1) {
+      diskUsed = 0;
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File cached : files) {
+          diskUsed += cached.length();
+        }
+      }
+    }
+    if (stale != null) {
+      for (File staleFile : stale) {
+        diskUsed -= staleFile.length();
+        staleFile.delete();
+      }
+    }
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+      } finally {
+        out.close();
+      }
+      diskUsed += file.length();
+    } catch (IOException e) {
+      Settings.printLogErrorMessage(getClass().getCanonicalName(), e);
+    }
+    if (diskUsed > maxDisk) {
+      trimDisk();
+    }
+
+    Settings.printLogMessage(getClass().getCanonicalName(), "Drew thumbnail of run " + runId + " in " + ((timeDrawn - timeBegin) / 1000)
+        + " micros, saved it in " + ((System.nanoTime() - timeDrawn) / 1000) + " micros.");
+    return bitmap;
+  }
+
+  // Deletes the least recently used files until the directory is back to three quarters of its size, so it isn't
+  // trimmed again on every write. Called on the background thread.
+  private void trimDisk() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long difference = a.lastModified() - b.lastModified();
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+      }
+    });
+
+    diskUsed = 0;
+    for (File cached : files) {
+      diskUsed += cached.length();
+    }
+    for (int i = 0; i < files.length && diskUsed > maxDisk * 3 / 4; ++i) {
+      long length = files[i].length();
+      if (files[i].delete()) {
+        diskUsed -= length;
+      }
+    }
+  }
+
+  // Draws the track of the run scaled to fit the thumbnail, simplified so no detail smaller than a pixel is drawn.
+  // Returns null if the run has no summary yet to scale it by, such as a run stored before summaries existed that
+  // hasn't been backfilled, so that nothing is cached for it and it is drawn once it has one.
+  private Bitmap drawThumbnail(long runId) {
+    RunSummary summary = dataHelper.getRunSummary(runId);
+    if (summary == null) {
+      return null;
+    }
+    Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    if (summary.getPointCount() < 2) {
+      return bitmap;
+    }
+
+    // Fit the bounding box of the track inside the thumbnail, keeping its shape.
+    double padding = paint.getStrokeWidth() * 2;
+    double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(GeoMath.toRadians((summary.getMinLatitude() + summary.getMaxLatitude()) / 2));
+    double width = (summary.getMaxLongitude() - summary.getMinLongitude()) * metersPerDegreeLongitude;
+    double height = (summary.getMaxLatitude() - summary.getMinLatitude()) * METERS_PER_DEGREE;
+    double pixelsPerMeter = (size - 2 * padding) / Math.max(Math.max(width, height), 1);
+    double left = (size - width * pixelsPerMeter) / 2;
+    double top = (size - height * pixelsPerMeter) / 2;
+
+    TrackSimplifier simplifier = new TrackSimplifier(1 / pixelsPerMeter);
+    path.rewind();
+    boolean started = false;
+    CoordinateReader reader = dataHelper.readCoordinates(runId);
+    try {
+      boolean more = true;
+      while (more) {
+        points.clear();
+        simplified.clear();
+        more = reader.read(points, READ_SIZE) > 0;
+        for (int i = 0; i < points.size(); ++i) {
+          simplifier.add(points.getLatitude(i), points.getLongitude(i), 0, 0, simplified);
+        }
+        if (!more) {
+          simplifier.finish(simplified);
+        }
+
+        for (int i = 0; i < simplified.size(); ++i) {
+          float x = (float) (left + (simplified.getLongitude(i) - summary.getMinLongitude()) * metersPerDegreeLongitude * pixelsPerMeter);
+          float y = (float) (top + (summary.getMaxLatitude() - simplified.getLatitude(i)) * METERS_PER_DEGREE * pixelsPerMeter);
+          if (started) {
+            path.lineTo(x, y);
+          } else {
+            path.moveTo(x, y);
+            started = true;
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    new Canvas(bitmap).drawPath(path, paint);
+    return bitmap;
+  }
+}
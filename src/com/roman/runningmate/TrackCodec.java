@@ -0,0 +1,130 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+// Packs a run's track into compact chunks. Latitude and longitude are stored as fixed point numbers in units of 1e-7
+// degrees, elevation in decimetres and time in milliseconds. Each value is stored as the zig-zag varint encoded
+// difference from the previous point, so a typical fix takes around 8 bytes instead of 40.
+// Every chunk starts from zero, so it can be decoded on its own.
+public class TrackCodec {
+  // Number of coordinates in a full chunk.
+  public static final int CHUNK_SIZE = 256;
+
+  private static final double DEGREE_SCALE = 1E7;
+  private static final double ELEVATION_SCALE = 10;
+
+  // A 64 bit varint takes at most 10 bytes.
+  private static final int MAX_VARINT_BYTES = 10;
+  private static final int MAX_POINT_BYTES = 4 * MAX_VARINT_BYTES;
+
+  // Encodes the coordinates in the range [from, to) as a single chunk.
+  public static byte[] encode(CoordinateBuffer coordinates, int from, int to) {
+    byte[] buffer = new byte[MAX_VARINT_BYTES + (to - from) * MAX_POINT_BYTES];
+    int pos = writeVarint(buffer, 0, to - from);
+
+    long lastLatitude = 0;
+    long lastLongitude = 0;
+    long lastElevation = 0;
+    long lastTimeElapsed = 0;
+    for (int i = from; i < to; ++i) {
+      long latitude = Math.round(coordinates.getLatitude(i) * DEGREE_SCALE);
+      long longitude = Math.round(coordinates.getLongitude(i) * DEGREE_SCALE);
+      long elevation = Math.round(coordinates.getElevation(i) * ELEVATION_SCALE);
+      long timeElapsed = coordinates.getTimeElapsed(i);
+
+      pos = writeVarint(buffer, pos, zigZag(latitude - lastLatitude));
+      pos = writeVarint(buffer, pos, zigZag(longitude - lastLongitude));
+      pos = writeVarint(buffer, pos, zigZag(elevation - lastElevation));
+      pos = writeVarint(buffer, pos, zigZag(timeElapsed - lastTimeElapsed));
+
+      lastLatitude = latitude;
+      lastLongitude = longitude;
+      lastElevation = elevation;
+      lastTimeElapsed = timeElapsed;
+    }
+
+    byte[] chunk = new byte[pos];
+    System.arraycopy(buffer, 0, chunk, 0, pos);
+    return chunk;
+  }
+
+  // Decodes a chunk, appending its coordinates to the buffer.
+  public static void decode(byte[] chunk, CoordinateBuffer coordinates) {
+    ChunkReader reader = new ChunkReader(chunk);
+    int count = (int) reader.readVarint();
+    coordinates.ensureCapacity(coordinates.size() + count);
+
+    long latitude = 0;
+    long longitude = 0;
+    long elevation = 0;
+    long timeElapsed = 0;
+    for (int i = 0; i < count; ++i) {
+      latitude += unZigZag(reader.readVarint());
+      longitude += unZigZag(reader.readVarint());
+      elevation += unZigZag(reader.readVarint());
+      timeElapsed += unZigZag(reader.readVarint());
+      coordinates.add(latitude / DEGREE_SCALE, longitude / DEGREE_SCALE, elevation / ELEVATION_SCALE, timeElapsed);
+    }
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int writeVarint(byte[] buffer, int pos, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[pos++] = (byte) value;
+    return pos;
+  }
+
+  private static class ChunkReader {
+    private byte[] buffer;
+    private int pos = 0;
+
+    public ChunkReader(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    public long readVarint() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer[pos++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.util.Random;
+
+// Generates plausible running tracks for filling test databases: a fix every second from a runner who keeps roughly to
+// their heading and pace, drifting between 2.5 and 4 m/s, over gently rolling ground. The same seed always gives the
+// same tracks.
+public class TrackGenerator {
+  private static final long INTERVAL = 1000;  // In milliseconds.
+  private static final double MIN_SPEED = 2.5;  // In meters per second.
+  private static final double MAX_SPEED = 4;  // In meters per second.
+  private static final double METERS_PER_DEGREE = GeoMath.EARTH_RADIUS * Math.PI / 180;
+
+  private final Random random;
+  private final double originLatitude;
+  private final double originLongitude;
+
+  // Tracks start within a couple of kilometres of the origin, given in degrees.
+  public TrackGenerator(long seed, double originLatitude, double originLongitude) {
+    this.random = new Random(seed);
+    this.originLatitude = originLatitude;
+    this.originLongitude = originLongitude;
+  }
+
+  // Appends a track of the given number of points to the buffer.
+  public void generate(int pointCount, CoordinateBuffer track) {
+    track.ensureCapacity(track.size() + pointCount);
+
+    double latitude = originLatitude + (random.nextDouble() - 0.5) * 0.03;
+    double longitude = originLongitude + (random.nextDouble() - 0.5) * 0.03;
+    double elevation = 10 + random.nextDouble() * 50;
+    double heading = random.nextDouble() * 2 * Math.PI;
+    double speed = MIN_SPEED + random.nextDouble() * (MAX_SPEED - MIN_SPEED);
+    double climb = 0;  // In meters per second.
+
+    for (int i = 0; i < pointCount; ++i) {
+      track.add(latitude, longitude, elevation, i * INTERVAL);
+
+      heading += random.nextGaussian() * 0.05;
+      speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed + random.nextGaussian() * 0.05));
+      climb = Math.max(-0.3, Math.min(0.3, climb + random.nextGaussian() * 0.02));
+      latitude += speed * Math.cos(heading) / METERS_PER_DEGREE;
+      longitude += speed * Math.sin(heading) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+      elevation += climb;
+    }
+  }
+}
@@ -0,0 +1,376 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+import com.google.android.maps.Projection;
+
+// Draws a track on the map so that the cost of a frame depends on what is on screen rather than on the length of the
+// track.
+//
+// The track is kept at several levels of detail, each simplified from the one before with a larger tolerance as points
+// arrive, and a frame draws the coarsest level whose tolerance is still under a pixel. Each level is split into
+// blocks of consecutive points with their bounding boxes, and only blocks near the screen are drawn.
+//
+// The visible part is projected once into a path covering the screen and a margin around it. The path is kept while
+// the screen stays inside that region at the same zoom level, and new points are appended to it. Panning just moves it.
+// As points are added, the overlay keeps track of the part of the map they affect, see getDirtyBounds().
+public class TrackOverlay extends Overlay {
+  // Tolerances of the levels of detail, in meters. The first level holds every point.
+  private static final double[] TOLERANCES = { 0, 2, 8, 32, 128, 512, 2048 };
+  // Number of points in a block of the spatial index.
+  private static final int BLOCK_SIZE = 64;
+  // Number of frames between logging draw times.
+  private static final int FRAMES_PER_LOG = 100;
+  private static final double EQUATOR_LENGTH = 2 * Math.PI * GeoMath.EARTH_RADIUS;  // In meters.
+
+  private Level[] levels = new Level[TOLERANCES.length];
+
+  // The latest point of the track, which the coarser levels may not have kept yet.
+  private boolean hasLastPoint = false;
+  private double lastLatitude;
+  private double lastLongitude;
+
+  private Paint paint = new Paint();
+  private Point point = new Point();
+
+  // Coordinates in the path are in pixels from the origin, the first point of the track, at the cached zoom level.
+  private GeoPoint origin = null;
+  private double originLatitude;
+  private double originLongitude;
+  private Path path = new Path();
+  private Level cachedLevel = null;
+  private int cachedZoomLevel = -1;
+  // Part of the map covered by the path, in pixels at the cached zoom level.
+  private double regionLeft;
+  private double regionTop;
+  private double regionRight;
+  private double regionBottom;
+  // Number of points of the cached level looked at, and the index of the last one in the path, or -1.
+  private int projectedCount = 0;
+  private int pathEnd = -1;
+  private int pathPointCount = 0;
+
+  // Bounding box of what has changed since the last frame, in degrees. Besides the points added since, it takes in the
+  // latest point and the last point of the level drawn as of that frame, which the joining line was drawn between.
+  private boolean dirty = false;
+  private double dirtyMinLatitude;
+  private double dirtyMaxLatitude;
+  private double dirtyMinLongitude;
+  private double dirtyMaxLongitude;
+  private double drawnLevelLatitude;
+  private double drawnLevelLongitude;
+  private double drawnTolerance = 0;
+
+  // Time spent drawing since draw times were last logged, in nanoseconds.
+  private int frameCount = 0;
+  private long drawTime = 0;
+  private long maxDrawTime = 0;
+
+  public TrackOverlay() {
+    for (int i = 0; i < levels.length; ++i) {
+      levels[i] = new Level(TOLERANCES[i]);
+    }
+
+    paint.setAntiAlias(true);
+    paint.setDither(true);
+    paint.setColor(Color.BLUE);
+    // Stroke only, filling would close the track into a shape.
+    paint.setStyle(Paint.Style.STROKE);
+    paint.setStrokeJoin(Paint.Join.ROUND);
+    paint.setStrokeCap(Paint.Cap.ROUND);
+    paint.setStrokeWidth(4);
+  }
+
+  // Appends a point to the track, in degrees.
+  public void add(double latitude, double longitude) {
+    if (origin == null) {
+      origin = new GeoPoint((int) (latitude * 1E6), (int) (longitude * 1E6));
+      originLatitude = origin.getLatitudeE6() / 1E6;
+      originLongitude = origin.getLongitudeE6() / 1E6;
+      drawnLevelLatitude = latitude;
+      drawnLevelLongitude = longitude;
+    }
+    if (!dirty) {
+      dirty = true;
+      dirtyMinLatitude = dirtyMaxLatitude = drawnLevelLatitude;
+      dirtyMinLongitude = dirtyMaxLongitude = drawnLevelLongitude;
+      if (hasLastPoint) {
+        extendDirty(lastLatitude, lastLongitude);
+      }
+    }
+    extendDirty(latitude, longitude);
+    hasLastPoint = true;
+    lastLatitude = latitude;
+    lastLongitude = longitude;
+
+    levels[0].points.add(latitude, longitude, 0, 0);
+    levels[0].index();
+    // Each level is simplified from the points the finer level has kept.
+    for (int i = 1; i < levels.length; ++i) {
+      Level level = levels[i];
+      CoordinateBuffer finer = levels[i - 1].points;
+      for (; level.simplifiedCount < finer.size(); ++level.simplifiedCount) {
+        level.simplifier.add(finer.getLatitude(level.simplifiedCount), finer.getLongitude(level.simplifiedCount), 0, 0, level.points);
+      }
+      level.index();
+    }
+  }
+
+  @Override
+  public void draw(Canvas canvas, MapView mapv, boolean shadow) {
+    super.draw(canvas, mapv, shadow);
+    if (shadow || !hasLastPoint) {
+      return;
+    }
+    long timeBegin = System.nanoTime();
+
+    int zoomLevel = mapv.getZoomLevel();
+    // The equator is 256 pixels long at zoom level 1, and twice as long at each level after.
+    double worldSize = 256.0 * (1 << (zoomLevel - 1));
+    double metersPerPixel = EQUATOR_LENGTH * Math.cos(GeoMath.toRadians(lastLatitude)) / worldSize;
+    Level level = levels[0];
+    for (int i = 1; i < levels.length && levels[i].tolerance <= metersPerPixel; ++i) {
+      level = levels[i];
+    }
+
+    Projection projection = mapv.getProjection();
+    projection.toPixels(origin, point);
+    double originX = toPixelX(originLongitude, worldSize);
+    double originY = toPixelY(originLatitude, worldSize);
+    double left = originX - point.x;
+    double top = originY - point.y;
+    double right = left + mapv.getWidth();
+    double bottom = top + mapv.getHeight();
+
+    if (level != cachedLevel || zoomLevel != cachedZoomLevel || left < regionLeft || top < regionTop || right > regionRight
+        || bottom > regionBottom) {
+      cachedLevel = level;
+      cachedZoomLevel = zoomLevel;
+      // Cover a screen's worth around the screen, so small pans don't need a new path.
+      regionLeft = left - mapv.getWidth();
+      regionTop = top - mapv.getHeight();
+      regionRight = right + mapv.getWidth();
+      regionBottom = bottom + mapv.getHeight();
+      project(level, worldSize, originX, originY);
+    } else {
+      // Append the points that arrived since the last frame.
+      for (; projectedCount < level.points.size(); ++projectedCount) {
+        appendSegment(level.points, projectedCount, worldSize, originX, originY);
+      }
+    }
+
+    canvas.save();
+    canvas.translate(point.x, point.y);
+    canvas.drawPath(path, paint);
+    if (level.points.size() > 0) {
+      // Join the track to the latest point, which the level may not have kept yet.
+      int last = level.points.size() - 1;
+      canvas.drawLine((float) (toPixelX(level.points.getLongitude(last), worldSize) - originX),
+          (float) (toPixelY(level.points.getLatitude(last), worldSize) - originY), (float) (toPixelX(lastLongitude, worldSize) - originX),
+          (float) (toPixelY(lastLatitude, worldSize) - originY), paint);
+    }
+    canvas.restore();
+
+    dirty = false;
+    drawnTolerance = level.tolerance;
+    if (level.points.size() > 0) {
+      drawnLevelLatitude = level.points.getLatitude(level.points.size() - 1);
+      drawnLevelLongitude = level.points.getLongitude(level.points.size() - 1);
+    } else {
+      drawnLevelLatitude = lastLatitude;
+      drawnLevelLongitude = lastLongitude;
+    }
+
+    long frameTime = System.nanoTime() - timeBegin;
+    ++frameCount;
+    drawTime += frameTime;
+    maxDrawTime = Math.max(maxDrawTime, frameTime);
+    if (frameCount == FRAMES_PER_LOG) {
+      Settings.printLogMessage(getClass().getCanonicalName(), "Drew " + pathPointCount + " of " + levels[0].points.size() + " points, at a "
+          + level.tolerance + " meter tolerance, in " + (drawTime / frameCount / 1000) + " micros on average, " + (maxDrawTime / 1000)
+          + " micros at most.");
+      frameCount = 0;
+      drawTime = 0;
+      maxDrawTime = 0;
+    }
+  }
+
+  // Sets the bounds to the part of the map view that has to be redrawn to show the points added since the last frame,
+  // returning false if nothing has changed.
+  public boolean getDirtyBounds(MapView mapv, Rect bounds) {
+    if (!dirty) {
+      return false;
+    }
+    if (cachedZoomLevel == -1) {
+      bounds.set(0, 0, mapv.getWidth(), mapv.getHeight());
+      return true;
+    }
+
+    int zoomLevel = mapv.getZoomLevel();
+    double worldSize = 256.0 * (1 << (zoomLevel - 1));
+    mapv.getProjection().toPixels(origin, point);
+    double left = toPixelX(originLongitude, worldSize) - point.x;
+    double top = toPixelY(originLatitude, worldSize) - point.y;
+
+    // Points the level drawn had yet to keep lie within its tolerance of the line it was joined by, and the tolerances
+    // of the finer levels it was simplified from add up to less than twice its own.
+    double metersPerPixel = EQUATOR_LENGTH * Math.cos(GeoMath.toRadians(lastLatitude)) / worldSize;
+    int margin = (int) Math.ceil(paint.getStrokeWidth() + 2 * drawnTolerance / metersPerPixel) + 1;
+    bounds.set((int) (toPixelX(dirtyMinLongitude, worldSize) - left) - margin, (int) (toPixelY(dirtyMaxLatitude, worldSize) - top) - margin,
+        (int) (toPixelX(dirtyMaxLongitude, worldSize) - left) + margin, (int) (toPixelY(dirtyMinLatitude, worldSize) - top) + margin);
+    return true;
+  }
+
+  public double getLastLatitude() {
+    return lastLatitude;
+  }
+
+  public double getLastLongitude() {
+    return lastLongitude;
+  }
+
+  private void extendDirty(double latitude, double longitude) {
+    dirtyMinLatitude = Math.min(dirtyMinLatitude, latitude);
+    dirtyMaxLatitude = Math.max(dirtyMaxLatitude, latitude);
+    dirtyMinLongitude = Math.min(dirtyMinLongitude, longitude);
+    dirtyMaxLongitude = Math.max(dirtyMaxLongitude, longitude);
+  }
+
+  // Rebuilds the path from the blocks of the level that overlap the cached region.
+  private void project(Level level, double worldSize, double originX, double originY) {
+    path.rewind();
+    pathEnd = -1;
+    pathPointCount = 0;
+    for (int block = 0; block < level.blockCount; ++block) {
+      if (toPixelX(level.maxLongitudes[block], worldSize) < regionLeft || toPixelX(level.minLongitudes[block], worldSize) > regionRight
+          || toPixelY(level.minLatitudes[block], worldSize) < regionTop || toPixelY(level.maxLatitudes[block], worldSize) > regionBottom) {
+        continue;
+      }
+      int end = Math.min((block + 1) * BLOCK_SIZE, level.points.size());
+      for (int i = block * BLOCK_SIZE; i < end; ++i) {
+        appendSegment(level.points, i, worldSize, originX, originY);
+      }
+    }
+    projectedCount = level.points.size();
+  }
+
+  // Adds the segment from the previous point to the point at the index to the path.
+  private void appendSegment(CoordinateBuffer points, int index, double worldSize, double originX, double originY) {
+    if (pathEnd != index - 1 || index == 0) {
+      int from = Math.max(index - 1, 0);
+      path.moveTo((float) (toPixelX(points.getLongitude(from), worldSize) - originX),
+          (float) (toPixelY(points.getLatitude(from), worldSize) - originY));
+      ++pathPointCount;
+    }
+    path.lineTo((float) (toPixelX(points.getLongitude(index), worldSize) - originX),
+        (float) (toPixelY(points.getLatitude(index), worldSize) - originY));
+    ++pathPointCount;
+    pathEnd = index;
+  }
+
+  // Mercator projection of a longitude to pixels from the left of the map.
+  private static double toPixelX(double longitude, double worldSize) {
+    return (longitude + 180) / 360 * worldSize;
+  }
+
+  // Mercator projection of a latitude to pixels from the top of the map.
+  private static double toPixelY(double latitude, double worldSize) {
+    double sinLatitude = Math.sin(GeoMath.toRadians(latitude));
+    return (0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI)) * worldSize;
+  }
+
+  // A level of detail of the track, with the bounding boxes of its blocks. Block b holds points [b * BLOCK_SIZE,
+  // (b + 1) * BLOCK_SIZE), and its box also takes in the point before, so the segment joining it to the previous block
+  // is drawn with it.
+  private static class Level {
+    final double tolerance;
+    final TrackSimplifier simplifier;
+    final CoordinateBuffer points = new CoordinateBuffer(1024);
+    // Number of points of the finer level given to the simplifier.
+    int simplifiedCount = 0;
+
+    // In degrees.
+    double[] minLatitudes = new double[16];
+    double[] maxLatitudes = new double[16];
+    double[] minLongitudes = new double[16];
+    double[] maxLongitudes = new double[16];
+    int blockCount = 0;
+    int indexedCount = 0;
+
+    Level(double tolerance) {
+      this.tolerance = tolerance;
+      this.simplifier = tolerance > 0 ? new TrackSimplifier(tolerance) : null;
+    }
+
+    // Takes the points added since the last call into the bounding boxes.
+    void index() {
+      for (; indexedCount < points.size(); ++indexedCount) {
+        int block = indexedCount / BLOCK_SIZE;
+        double latitude = points.getLatitude(indexedCount);
+        double longitude = points.getLongitude(indexedCount);
+        if (block == blockCount) {
+          if (blockCount == minLatitudes.length) {
+            minLatitudes = grow(minLatitudes);
+            maxLatitudes = grow(maxLatitudes);
+            minLongitudes = grow(minLongitudes);
+            maxLongitudes = grow(maxLongitudes);
+          }
+          minLatitudes[block] = maxLatitudes[block] = latitude;
+          minLongitudes[block] = maxLongitudes[block] = longitude;
+          if (indexedCount > 0) {
+            extend(block, points.getLatitude(indexedCount - 1), points.getLongitude(indexedCount - 1));
+          }
+          ++blockCount;
+        } else {
+          extend(block, latitude, longitude);
+        }
+      }
+    }
+
+    private void extend(int block, double latitude, double longitude) {
+      minLatitudes[block] = Math.min(minLatitudes[block], latitude);
+      maxLatitudes[block] = Math.max(maxLatitudes[block], latitude);
+      minLongitudes[block] = Math.min(minLongitudes[block], longitude);
+      maxLongitudes[block] = Math.max(maxLongitudes[block], longitude);
+    }
+
+    private static double[] grow(double[] array) {
+      double[] grown = new double[array.length * 2];
+      System.arraycopy(array, 0, grown, 0, array.length);
+      return grown;
+    }
+  }
+}
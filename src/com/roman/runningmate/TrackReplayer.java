@@ -0,0 +1,164 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Plays a recorded track into the location service as if the fixes came from the GPS, for testing the tracking
+// pipeline without going outside. Tracks are read from local files, in the "latitude,longitude,altitude[,time]" format
+// the old mock locations used, or taken from runs already stored.
+//
+// Fix times come from the track rather than the clock, so replaying the same track always gives the same run. The
+// replay is paced at a multiple of the speed it was recorded at, or, with a speed of 0, fed in as fast as the
+// pipeline takes it, which is how to measure its throughput.
+public class TrackReplayer implements Runnable {
+  // Interval given to points of tracks that don't have times, in milliseconds.
+  private static final long DEFAULT_INTERVAL = 1000;
+  // Fixes fed in per message when replaying flat out, so other work on the location thread still gets to run.
+  private static final int BATCH_SIZE = 256;
+  // Accuracy given to the replayed fixes, in meters. Good enough to get through the accuracy gate.
+  private static final float ACCURACY = 5;
+
+  private final LocationService locationService;
+  private final Handler locationHandler;
+  private final CoordinateBuffer track;
+  private final double speed;
+  private final long startTime;
+
+  // Only accessed on the location thread.
+  private int position = 0;
+  private long replayStartedTime;
+  private long memoryAtStart;
+  private boolean cancelled = false;
+
+  // Replays the track on the location thread of the service, with fix times counted from the given start time.
+  public TrackReplayer(LocationService locationService, Handler locationHandler, CoordinateBuffer track, double speed, long startTime) {
+    this.locationService = locationService;
+    this.locationHandler = locationHandler;
+    this.track = track;
+    this.speed = speed;
+    this.startTime = startTime;
+  }
+
+  // Reads a track from a file of lines of "latitude,longitude,altitude" with an optional time elapsed in milliseconds.
+  // Points without a time are spaced by the default interval. Malformed lines are skipped.
+  public static CoordinateBuffer readTrack(InputStream in) throws IOException {
+    CoordinateBuffer track = new CoordinateBuffer(1024);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in), 8192);
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(",");
+        if (parts.length < 3) {
+          continue;
+        }
+        try {
+          long timeElapsed = parts.length > 3 ? Long.parseLong(parts[3].trim()) : track.size() * DEFAULT_INTERVAL;
+          track.add(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()), Double.parseDouble(parts[2].trim()), timeElapsed);
+        } catch (NumberFormatException e) {
+          Settings.printLogMessage(TrackReplayer.class.getCanonicalName(), "Skipping malformed line: " + line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return track;
+  }
+
+  public void start() {
+    locationHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        position = 0;
+        cancelled = false;
+        replayStartedTime = SystemClock.elapsedRealtime();
+        memoryAtStart = getUsedMemory();
+        TrackReplayer.this.run();
+      }
+    });
+  }
+
+  // Stops the replay. Any fixes already fed in stay with the run.
+  public void cancel() {
+    locationHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        cancelled = true;
+        locationHandler.removeCallbacks(TrackReplayer.this);
+      }
+    });
+  }
+
+  // Feeds in the next fixes. Runs on the location thread.
+  @Override
+  public void run() {
+    if (cancelled) {
+      return;
+    }
+
+    if (speed <= 0) {
+      int end = Math.min(position + BATCH_SIZE, track.size());
+      while (position < end) {
+        feed(position++);
+      }
+      if (position < track.size()) {
+        locationHandler.post(this);
+        return;
+      }
+    } else if (position < track.size()) {
+      feed(position++);
+      if (position < track.size()) {
+        long delay = (long) ((track.getTimeElapsed(position) - track.getTimeElapsed(position - 1)) / speed);
+        locationHandler.postDelayed(this, Math.max(delay, 0));
+        return;
+      }
+    }
+    finish();
+  }
+
+  private void feed(int index) {
+    long time = startTime + track.getTimeElapsed(index) - track.getTimeElapsed(0);
+    locationService.processFix(track.getLatitude(index), track.getLongitude(index), track.getElevation(index), time, ACCURACY);
+  }
+
+  private void finish() {
+    long replayTime = SystemClock.elapsedRealtime() - replayStartedTime;
+    Settings.printLogMessage(getClass().getCanonicalName(), "Replayed " + track.size() + " fixes in " + replayTime + " ms ("
+        + (track.size() * 1000L / Math.max(replayTime, 1)) + " fixes per second), heap use changed by "
+        + ((getUsedMemory() - memoryAtStart) / 1024) + " KB.");
+  }
+
+  private static long getUsedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -25,81 +25,114 @@
 
 package com.roman.runningmate;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import android.content.Intent;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.Point;
-import android.location.Location;
-import android.location.LocationListener;
+import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapActivity;
 import com.google.android.maps.MapController;
 import com.google.android.maps.MapView;
-import com.google.android.maps.Overlay;
-import com.google.android.maps.Projection;
 
 public class TrackRun extends MapActivity {
+  private static final long STATISTICS_REFRESH_INTERVAL = 1000;  // In milliseconds.
+  // Fixes are drawn at most once a frame; fixes arriving faster than that are drawn together. In milliseconds.
+  private static final long FRAME_INTERVAL = 16;
+
+  private Handler handler = new Handler();
+  private MapView mapView;
+  private MapController mapController;
+  // Created once and added to as fixes arrive.
+  private TrackOverlay trackOverlay = new TrackOverlay();
+  private boolean trackUpdatePending = false;
+  private Point point = new Point();
+  private Rect dirtyBounds = new Rect();
+  // When the screen was created, to log how long it takes to show the track restored from the service.
+  private long createdTime;
+  private boolean restored = false;
+  private LocationService.TrackListener trackListener;
+  private TextView runInfo;
+  private RunStatistics.Snapshot statistics = new RunStatistics.Snapshot();
+
+  // Shows the live statistics of the run, polling the service once a second while the screen is visible.
+  private Runnable refreshStatistics = new Runnable() {
+    @Override
+    public void run() {
+      LocationService locationService = RunningMate.getLocationService();
+      if (locationService != null) {
+        locationService.getRunStatistics().copyTo(statistics);
+        long paceSeconds = (long) statistics.distanceWindowPace;
+        runInfo.setText(String.format("%.2f km\n%d:%02d /km", statistics.distance / RunStatistics.METERS_PER_KILOMETER, paceSeconds / 60,
+            paceSeconds % 60));
+      }
+      handler.postDelayed(this, STATISTICS_REFRESH_INTERVAL);
+    }
+  };
+
+  // Redraws the part of the map the fixes since the last frame affect. The map is only moved when the runner gets near
+  // the edge of the screen, since that redraws all of it.
+  private Runnable updateTrack = new Runnable() {
+    @Override
+    public void run() {
+      trackUpdatePending = false;
+      if (!restored) {
+        restored = true;
+        Settings.printLogMessage(getClass().getCanonicalName(), "First track update " + ((System.nanoTime() - createdTime) / 1000000)
+            + " ms after the screen was created.");
+      }
+      GeoPoint last = new GeoPoint((int) (trackOverlay.getLastLatitude() * 1E6), (int) (trackOverlay.getLastLongitude() * 1E6));
+      mapView.getProjection().toPixels(last, point);
+      int marginX = mapView.getWidth() / 4;
+      int marginY = mapView.getHeight() / 4;
+      if (point.x < marginX || point.x > mapView.getWidth() - marginX || point.y < marginY || point.y > mapView.getHeight() - marginY) {
+        mapController.animateTo(last);
+      } else if (trackOverlay.getDirtyBounds(mapView, dirtyBounds)) {
+        mapView.invalidate(dirtyBounds);
+      }
+    }
+  };
+
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    createdTime = System.nanoTime();
     setContentView(R.layout.track_run);
 
-    final MapView mapView = (MapView) findViewById(R.id.mapview);
+    mapView = (MapView) findViewById(R.id.mapview);
     mapView.setBuiltInZoomControls(true);
+    mapView.getOverlays().add(trackOverlay);
 
-    final MapController mapController = mapView.getController();
+    mapController = mapView.getController();
     mapController.setZoom(16);
 
-    final ArrayList<GeoPoint> points = new ArrayList<GeoPoint>();
-    final Projection projection = mapView.getProjection();
-
-    final LocationListener locationListener = new LocationListener() {
-      @Override
-      public void onLocationChanged(Location loc) {
-        double lat = loc.getLatitude();
-        double lng = loc.getLongitude();
-
-        GeoPoint p = new GeoPoint((int) (lat * 1E6), (int) (lng * 1E6));
-        mapController.animateTo(p);
-        mapView.invalidate();
-
-        points.add(p);
-
-        List<Overlay> mapOverlays = mapView.getOverlays();
-        mapOverlays.clear();
-        mapOverlays.add(new PathOverlay(projection, points));
-      }
+    runInfo = (TextView) findViewById(R.id.label);
 
+    // Also called with the track so far when the screen is recreated during a run, such as after a rotation.
+    trackListener = new LocationService.TrackListener() {
       @Override
-      public void onProviderDisabled(String provider) {
-      }
-
-      @Override
-      public void onProviderEnabled(String provider) {
-      }
-
-      @Override
-      public void onStatusChanged(String provider, int status, Bundle extras) {
+      public void onFix(double latitude, double longitude, double elevation, long timeElapsed) {
+        trackOverlay.add(latitude, longitude);
+        if (!trackUpdatePending) {
+          trackUpdatePending = true;
+          handler.postDelayed(updateTrack, FRAME_INTERVAL);
+        }
       }
     };
 
+    // Does nothing if a run is already being tracked.
     RunningMate.getLocationService().startRun();
-    RunningMate.getLocationService().registerLocationListener(locationListener);
+    RunningMate.getLocationService().addTrackListener(trackListener);
 
     final Button stopButton = (Button) this.findViewById(R.id.stop_button);
     stopButton.setOnClickListener(new View.OnClickListener() {
       @Override
       public void onClick(View view) {
-        RunningMate.getLocationService().removeLocationListener(locationListener);
+        RunningMate.getLocationService().removeTrackListener(trackListener);
         RunningMate.getLocationService().stopRun();
 
         // We don't need to pass any result back to the calling activity.
@@ -114,58 +147,24 @@ public class TrackRun extends MapActivity {
     return false;
   }
 
-  class PathOverlay extends Overlay {
-    Projection projection;
-    List<GeoPoint> points;
-
-    public PathOverlay(Projection projection, List<GeoPoint> points) {
-      this.projection = projection;
-      this.points = points;
-    }
-
-    public void draw(Canvas canvas, MapView mapv, boolean shadow) {
-      super.draw(canvas, mapv, shadow);
-
-      Paint mPaint = new Paint();
-      mPaint.setDither(true);
-      mPaint.setColor(Color.BLUE);
-      mPaint.setStyle(Paint.Style.FILL_AND_STROKE);
-      mPaint.setStrokeJoin(Paint.Join.ROUND);
-      mPaint.setStrokeCap(Paint.Cap.ROUND);
-      mPaint.setStrokeWidth(4);
-
-      GeoPoint lastGeoPoint = points.get(0);
-      for (int i = 1; i < points.size(); ++i) {
-        GeoPoint currGeoPoint = points.get(i);
-
-        Point lastPoint = new Point();
-        Point currPoint = new Point();
-
-        Path path = new Path();
-
-        projection.toPixels(lastGeoPoint, lastPoint);
-        projection.toPixels(currGeoPoint, currPoint);
-
-        path.moveTo(currPoint.x, currPoint.y);
-        path.lineTo(lastPoint.x, lastPoint.y);
-
-        canvas.drawPath(path, mPaint);
-
-        lastGeoPoint = currGeoPoint;
-      }
-    }
-  }
-
   @Override
   protected void onDestroy() {
     Settings.printLogMessage(getClass().getCanonicalName(), "onDestroy() called.");
     super.onDestroy();
+    // The run carries on when the screen is only being recreated, and its replacement registers its own listener.
+    LocationService locationService = RunningMate.getLocationService();
+    if (locationService != null) {
+      locationService.removeTrackListener(trackListener);
+    }
   }
 
   @Override
   protected void onPause() {
     Settings.printLogMessage(getClass().getCanonicalName(), "onPause() called.");
     super.onPause();
+    handler.removeCallbacks(refreshStatistics);
+    handler.removeCallbacks(updateTrack);
+    trackUpdatePending = false;
   }
 
   @Override
@@ -184,6 +183,7 @@ public class TrackRun extends MapActivity {
   protected void onResume() {
     Settings.printLogMessage(getClass().getCanonicalName(), "onResume() called.");
     super.onResume();
+    handler.post(refreshStatistics);
   }
 
   @Override
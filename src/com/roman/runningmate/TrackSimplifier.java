@@ -0,0 +1,177 @@
+// Copyright (c) 2011, Roman Khmelichek
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+//  1. Redistributions of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//  2. Redistributions in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//  3. Neither the name of Roman Khmelichek nor the names of its contributors
+//     may be used to endorse or promote products derived from this software
+//     without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+// EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+// OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+// WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+// OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+// ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.roman.runningmate;
+
+// Simplifies a track as fixes arrive, dropping points that lie within a tolerance of the line through their
+// neighbours. This is the opening window algorithm: the window holds the points since the last kept point, and the
+// newest point is kept once the line from the last kept point can no longer stand in for all of them. The window has
+// a fixed size, so each fix costs at most that many distance checks.
+public class TrackSimplifier {
+  // Most points held back before one is kept. Package visible, it bounds what LocationService has to journal.
+  static final int MAX_WINDOW = 32;
+  private static final double METERS_PER_DEGREE = GeoMath.EARTH_RADIUS * Math.PI / 180;
+
+  private double tolerance;
+
+  private boolean hasAnchor = false;
+  private double anchorLatitude;
+  private double anchorLongitude;
+  private double anchorMetersPerDegreeLongitude;
+
+  // Points since the last kept one, along with their offsets from it in meters.
+  private CoordinateBuffer window = new CoordinateBuffer(MAX_WINDOW);
+  private double[] windowX = new double[MAX_WINDOW];
+  private double[] windowY = new double[MAX_WINDOW];
+  private double windowDeviation = 0;
+
+  private long pointCount = 0;
+  private long keptCount = 0;
+  private double maxDeviation = 0;
+
+  // The tolerance is the furthest, in meters, a dropped point may be from the simplified track.
+  public TrackSimplifier(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  public void reset() {
+    hasAnchor = false;
+    window.clear();
+    windowDeviation = 0;
+    pointCount = 0;
+    keptCount = 0;
+    maxDeviation = 0;
+  }
+
+  // Takes the next point of the track, appending any points that are kept to the output.
+  public void add(double latitude, double longitude, double elevation, long timeElapsed, CoordinateBuffer output) {
+    ++pointCount;
+    if (!hasAnchor) {
+      setAnchor(latitude, longitude);
+      keep(latitude, longitude, elevation, timeElapsed, output);
+      return;
+    }
+
+    double x = (longitude - anchorLongitude) * anchorMetersPerDegreeLongitude;
+    double y = (latitude - anchorLatitude) * METERS_PER_DEGREE;
+    double deviation = 0;
+    for (int i = 0; i < window.size(); ++i) {
+      deviation = Math.max(deviation, distanceToSegment(windowX[i], windowY[i], x, y));
+    }
+
+    if (deviation > tolerance || window.size() == MAX_WINDOW) {
+      // The newest point in the window is as far as the last kept point can reach, so it is kept in turn.
+      int last = window.size() - 1;
+      double lastLatitude = window.getLatitude(last);
+      double lastLongitude = window.getLongitude(last);
+      keep(lastLatitude, lastLongitude, window.getElevation(last), window.getTimeElapsed(last), output);
+      maxDeviation = Math.max(maxDeviation, windowDeviation);
+
+      setAnchor(lastLatitude, lastLongitude);
+      x = (longitude - anchorLongitude) * anchorMetersPerDegreeLongitude;
+      y = (latitude - anchorLatitude) * METERS_PER_DEGREE;
+      deviation = 0;
+    }
+
+    windowX[window.size()] = x;
+    windowY[window.size()] = y;
+    window.add(latitude, longitude, elevation, timeElapsed);
+    windowDeviation = deviation;
+  }
+
+  // Keeps the last point of the track, at the end of a run.
+  public void finish(CoordinateBuffer output) {
+    if (!window.isEmpty()) {
+      int last = window.size() - 1;
+      keep(window.getLatitude(last), window.getLongitude(last), window.getElevation(last), window.getTimeElapsed(last), output);
+      maxDeviation = Math.max(maxDeviation, windowDeviation);
+      window.clear();
+    }
+  }
+
+  // Simplifies a whole track and checks every point of it lies within the tolerance of the segment of the simplified
+  // track it was dropped from, with the first and last points kept. Logs the results and returns false on a failure.
+  public boolean replay(CoordinateBuffer track) {
+    reset();
+    CoordinateBuffer simplified = new CoordinateBuffer();
+    for (int i = 0; i < track.size(); ++i) {
+      add(track.getLatitude(i), track.getLongitude(i), track.getElevation(i), track.getTimeElapsed(i), simplified);
+    }
+    finish(simplified);
+
+    boolean passed = true;
+    if (track.size() > 0) {
+      passed = simplified.getTimeElapsed(0) == track.getTimeElapsed(0)
+          && simplified.getTimeElapsed(simplified.size() - 1) == track.getTimeElapsed(track.size() - 1);
+    }
+    // Kept points are a subsequence of the track, so each point falls on the segment ending at the next kept point.
+    double worstDeviation = 0;
+    int segment = 0;
+    for (int i = 0; i < track.size() && segment + 1 < simplified.size(); ++i) {
+      double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(GeoMath.toRadians(simplified.getLatitude(segment)));
+      double px = (track.getLongitude(i) - simplified.getLongitude(segment)) * metersPerDegreeLongitude;
+      double py = (track.getLatitude(i) - simplified.getLatitude(segment)) * METERS_PER_DEGREE;
+      double x = (simplified.getLongitude(segment + 1) - simplified.getLongitude(segment)) * metersPerDegreeLongitude;
+      double y = (simplified.getLatitude(segment + 1) - simplified.getLatitude(segment)) * METERS_PER_DEGREE;
+      worstDeviation = Math.max(worstDeviation, distanceToSegment(px, py, x, y));
+      if (track.getTimeElapsed(i) == simplified.getTimeElapsed(segment + 1)) {
+        ++segment;
+      }
+    }
+    // Leaves a little room for rounding.
+    passed = passed && worstDeviation <= tolerance * 1.001;
+
+    Settings.printLogMessage(getClass().getCanonicalName(), (passed ? "" : "FAILED: ") + getStatistics() + " Checked deviation "
+        + worstDeviation + " meters.");
+    return passed;
+  }
+
+  public String getStatistics() {
+    return "Kept " + keptCount + " of " + pointCount + " points (" + (keptCount > 0 ? (double) pointCount / keptCount : 0)
+        + " to 1), deviating at most " + maxDeviation + " meters.";
+  }
+
+  private void setAnchor(double latitude, double longitude) {
+    hasAnchor = true;
+    anchorLatitude = latitude;
+    anchorLongitude = longitude;
+    anchorMetersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(GeoMath.toRadians(latitude));
+    window.clear();
+  }
+
+  private void keep(double latitude, double longitude, double elevation, long timeElapsed, CoordinateBuffer output) {
+    output.add(latitude, longitude, elevation, timeElapsed);
+    ++keptCount;
+  }
+
+  // Distance from the point (px, py) to the segment from the origin to (x, y).
+  private static double distanceToSegment(double px, double py, double x, double y) {
+    double lengthSquared = x * x + y * y;
+    double t = lengthSquared > 0 ? Math.max(0, Math.min(1, (px * x + py * y) / lengthSquared)) : 0;
+    double dx = px - t * x;
+    double dy = py - t * y;
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+}